@@ -11,6 +11,8 @@
 --------------------------------------------------------------------- */
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -19,22 +21,62 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.spi.ToolProvider;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
 
 public final class jbp {
 
+    private static final String VERSION = "v0.18.0";
+
     private static long startNanoTime;
 
     // config
@@ -52,10 +94,52 @@ public final class jbp {
     private static String jvm             = null;
     private static String jar             = null;
     private static String javadoc         = null;
+    private static String inMemory        = null;
+    private static String incremental     = null;
+    private static String bytecodeCache   = null;
+    private static String trace           = null;
+    private static String packaging       = null;
+    private static String reproducible    = null;
+    private static String compression     = null;
+    private static String classDataSharing = null;
+    private static String runtime         = null;
+    private static String jlink           = null;
+    private static String jdeps           = null;
+    private static String profile         = null;
+    private static String benchThreshold  = null;
+    private static String buildCacheSize  = null;
+    private static final List<File> dependencyDirs = new ArrayList<>(); // 'Depends'
 
     // We have a boolean here for performance reasons. Otherwise we would
     // have to check the string with 'equalsIgnoreCase()' all the time.
     private static boolean simpleOutputBool = false;
+    private static boolean inMemoryBool     = false;
+    private static boolean incrementalBool  = false;
+    private static long bytecodeCacheSizeMb = 0;
+    private static long buildCacheSizeMb    = 0;
+    private static boolean reproducibleBool = false;
+    private static int benchThresholdPercent = 10;
+    private static int compressionLevel     = -1; // of the Deflater, 0 means entries get stored; -1 leaves it to the jar tool
+
+    // Source files found while analyzing the source tree.
+    private static final List<File> sourceFiles = new ArrayList<>();
+
+    // Listings of class files we have seen before, by the hash of the class file. Lives outside of
+    // 'build' so it survives cleaning the build directory.
+    private static final File BYTECODE_CACHE = new File(".jbp/bytecode-cache");
+    private static final String BYTECODE_CACHE_FORMAT = "jbp-bytecode-2"; // bump when the listing or analysis format changes
+    private static final java.util.concurrent.atomic.AtomicInteger bytecodeCacheHits = new java.util.concurrent.atomic.AtomicInteger();
+    private static final java.util.concurrent.atomic.AtomicInteger bytecodeCacheMisses = new java.util.concurrent.atomic.AtomicInteger();
+
+    // Jar entry name (e.g 'foo/Bar.class') -> class bytes, only used when compiling in-memory.
+    private static Map<String, byte[]> inMemoryClasses = null;
+
+    // Size of the libraries and resources in the release, known from syncing them.
+    private static long releaseFilesBytes = 0;
+
+    // What the current build keeps of the previous one, because nothing it has been made from changed (only known in --watch).
+    private static boolean keepProgram = false;       // classes, bytecode listings, executable and what has been made from it
+    private static boolean keepDocumentation = false;
 
     private static void stdout(final String str) {
         if (str == null && !simpleOutputBool) {
@@ -74,6 +158,7 @@ public final class jbp {
         assert dir != null;
         assert dir.isDirectory();
 
+        final Span span = span("io", "walk");
         try (final Stream<Path> stream = Files.walk(dir.toPath(), Integer.MAX_VALUE)) {
             final StringBuilder sbuffer = new StringBuilder();
             final List<String> files = stream.map(String::valueOf).sorted().collect(Collectors.toList());
@@ -83,834 +168,5665 @@ public final class jbp {
             for (int i = 0, l = result.length; i < l; ++i)
                 result[i] = new File(files.get(i));
             return result;
+        } finally {
+            span.close();
+        }
+    }
+
+    // Aborts the current build. We do not just exit because the JVM might outlive the build (daemon).
+    private static final class BuildFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BuildFailedException(final String reason) {
+            super(reason);
         }
     }
 
     private static void buildFail(final String reason) {
         assert reason != null;
 
-        // TODO(nschultz): We might still have this file.
-        // Maybe using file.deleteOnExit() would be more appropriate?
-        new File("sources.txt").delete();
-
-        System.out.println(reason);
-        System.out.println();
-        System.out.println("BUILD FAILED");
-        System.exit(-1);
+        // sources.txt gets deleted by build() once no phase can be reading it anymore.
+        throw new BuildFailedException(reason);
     }
 
-    private static Object[] execShellCommand(final File out, final File cwd, final boolean print, final String...args) throws IOException {
-        assert args != null;
-
-        final Object[] result = new Object[2];
+    private static final java.lang.management.ThreadMXBean threadMXBean = java.lang.management.ManagementFactory.getThreadMXBean();
+    // Every span of the current build which has been closed, in no particular order.
+    private static final java.util.concurrent.ConcurrentLinkedQueue<Span> spans = new java.util.concurrent.ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
 
-        final ProcessBuilder builder = new ProcessBuilder(args);
-        if (cwd != null)
-            builder.directory(cwd);
+    // Time (wall and cpu) and bytes read or written by one step of the build, like a phase, a tool run or a file copy.
+    // Spans nest per thread, bytes counted for a span also count for the spans around it.
+    private static final class Span implements AutoCloseable {
+        final String category;
+        final String name;
+        final Span parent;
+        final long threadId;
+        final String threadName;
+        final long startNanos;
+        final long startCpuNanos;
+        long wallNanos = 0;
+        long cpuNanos = 0;
+        final java.util.concurrent.atomic.AtomicLong bytesRead = new java.util.concurrent.atomic.AtomicLong();
+        final java.util.concurrent.atomic.AtomicLong bytesWritten = new java.util.concurrent.atomic.AtomicLong();
 
-        builder.redirectErrorStream(true);
-        if (out != null) {
-	        builder.redirectOutput(out);
-            try {
-                result[1] = builder.start().waitFor();
-            } catch(final InterruptedException ex) {
-                assert false;
-            }
-            final StringBuilder buffer = new StringBuilder(4096);
-            readFileIntoMemory(buffer, out);
-            result[0] = buffer.toString();
-            return result;
-        } else {
-            final Process process = builder.start();
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            final StringBuilder sb = new StringBuilder();
-            while (true) {
-                line = reader.readLine();
-                if (line == null)
-                    break;
+        private Span(final String category, final String name) {
+            assert category != null;
+            assert name != null;
+            this.category = category;
+            this.name = name;
+            this.parent = currentSpan.get();
+            this.threadId = Thread.currentThread().getId();
+            this.threadName = Thread.currentThread().getName();
+            this.startCpuNanos = threadCpuTime();
+            this.startNanos = System.nanoTime();
+            currentSpan.set(this);
+        }
 
-                assert line != null;
-                if (print)
-                    System.out.println(line);
-                sb.append(line).append("\n");
-            }
-            result[0] = sb.toString();
-            try {
-                result[1] = process.waitFor();
-            } catch (final InterruptedException ex) {
-                assert false;
-            }
-            return result;
+        @Override
+        public void close() {
+            wallNanos = System.nanoTime() - startNanos;
+            cpuNanos = threadCpuTime() - startCpuNanos;
+            currentSpan.set(parent);
+            spans.add(this);
         }
     }
 
-    private static void writeToFile(String file, final String data) {
-        writeToFile(file, data, false);
+    private static long threadCpuTime() {
+        return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : 0;
     }
 
-    private static void writeToFile(String file, final String data, final boolean append) {
-        assert file != null;
-        assert data != null;
-
-        // Remove illegal characters, which can occur when having a file which uses generics
-        file = file.replace("<", "").replace(">", "");
+    private static void resetPeakHeap() {
+        for (final java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == java.lang.management.MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
 
-        try (final OutputStream out = new FileOutputStream(new File(file), append)) {
-            out.write(data.getBytes(StandardCharsets.UTF_8));
-            out.flush();
-        } catch (final IOException ex) {
-            stdout(String.format("\t-> Failed to write file '%s'\n", file));
+    // Sum of the peaks of every heap pool since resetPeakHeap(). The pools do not all peak at the same time, so this
+    // is an upper bound rather than the exact peak.
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (final java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == java.lang.management.MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
         }
+        return peak;
     }
 
-    private static void readFileIntoMemory(final StringBuilder buffer, final File file) {
-        assert buffer != null;
-        assert file != null;
+    private static Span span(final String category, final String name) {
+        return new Span(category, name);
+    }
 
-        try (final InputStream in = new FileInputStream(file)) {
-            while (true) {
-                final byte[] chunk = new byte[buffer.capacity()];
-                final int readBytes = in.read(chunk);
-                if (readBytes == -1)
-                    break;
-                buffer.append(new String(chunk, 0, readBytes, StandardCharsets.UTF_8));
-            }
-        } catch (final IOException ex) {
-            stdout(String.format("Failed to read file %s", file.getName()));
+    private static void traceRead(final long bytes) {
+        for (Span span = currentSpan.get(); span != null; span = span.parent)
+            span.bytesRead.addAndGet(bytes);
+    }
+
+    private static void traceWritten(final long bytes) {
+        for (Span span = currentSpan.get(); span != null; span = span.parent)
+            span.bytesWritten.addAndGet(bytes);
+    }
+
+    private static void copyFile(final Path from, final Path to) throws IOException {
+        final Span span = span("io", "copy");
+        try {
+            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+            final long size = Files.size(to);
+            traceRead(size);
+            traceWritten(size);
+        } finally {
+            span.close();
         }
     }
 
-    private static void log(final double seconds) {
-        final File logFile = new File("jbp.log");
-        if (!logFile.exists()) {
-            try {
-                if (!logFile.createNewFile()) {
-                    stdout("Failed to create jbp.log file.");
-                    return;
-                }
-            } catch (final IOException ex) {
-                stdout("Failed to create jbp.log file.");
-                return;
-            }
+    private static String jsonString(final String str) {
+        final StringBuilder sb = new StringBuilder(str.length() + 2).append('"');
+        for (int i = 0, l = str.length(); i < l; ++i) {
+            final char c = str.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
         }
+        return sb.append('"').toString();
+    }
 
-        final SimpleDateFormat parser = new SimpleDateFormat("DD.MM.yyyy-hh:mm:ss");
-        final String date = parser.format(new Date());
-        if (seconds == -1) { // The build has failed if we get '-1'.
-            writeToFile(logFile.getAbsolutePath(), date + "-> BUILD FAILED\n", true);
-        } else {
-            writeToFile(logFile.getAbsolutePath(), date + "-> BUILD SUCCESSFULL TOOK " + seconds + " SECONDS\n", true);
+    // Writes the spans in the Chrome trace event format, which chrome://tracing and ui.perfetto.dev can open.
+    private static void writeTrace(final File file) {
+        final StringBuilder sb = new StringBuilder(64 * 1024);
+        sb.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        final Map<Long, String> threads = new TreeMap<>();
+        for (final Span span : spans) {
+            threads.put(span.threadId, span.threadName);
+            sb.append(String.format(java.util.Locale.ROOT, "{\"name\":%s,\"cat\":%s,\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"cpu_ms\":%.3f,\"bytes_read\":%d,\"bytes_written\":%d}},\n",
+                                    jsonString(span.name), jsonString(span.category), span.threadId, (span.startNanos - startNanoTime) / 1000.0, span.wallNanos / 1000.0,
+                                    span.cpuNanos / 1000000.0, span.bytesRead.get(), span.bytesWritten.get()));
         }
+        for (final Map.Entry<Long, String> thread : threads.entrySet())
+            sb.append(String.format("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":%s}},\n", thread.getKey(), jsonString(thread.getValue())));
+        sb.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"jbp\"}}\n]}\n");
+        writeToFile(file.getPath(), sb.toString());
     }
 
-    private static void deleteSourcesFiles() {
-        final File sources = new File("sources.txt");
-        if (sources.exists()) {
-            if (!sources.delete()) {
-                System.out.println();
-                stdout("Failed to delete sources.txt file.");
-            }
+    // Sums up the spans by category and name. Nested spans are included in their parents, so the rows do not add up.
+    private static void printTraceSummary() {
+        final Map<String, long[]> rows = new TreeMap<>(); // count, wall, cpu, read, written
+        for (final Span span : spans) {
+            final long[] row = rows.computeIfAbsent(span.category + " " + span.name, k -> new long[5]);
+            row[0] += 1;
+            row[1] += span.wallNanos;
+            row[2] += span.cpuNanos;
+            row[3] += span.bytesRead.get();
+            row[4] += span.bytesWritten.get();
+        }
+        System.out.println(String.format("%-32s %6s %10s %10s %12s %12s", "SPAN", "COUNT", "WALL MS", "CPU MS", "READ KB", "WRITTEN KB"));
+        for (final Map.Entry<String, long[]> row : rows.entrySet()) {
+            final long[] v = row.getValue();
+            System.out.println(String.format(java.util.Locale.ROOT, "%-32s %6d %10.1f %10.1f %12.1f %12.1f", row.getKey(), v[0], v[1] / 1000000.0, v[2] / 1000000.0, v[3] / 1024.0, v[4] / 1024.0));
         }
+        System.out.println(String.format(java.util.Locale.ROOT, "Peak heap usage: %.1f MB", peakHeapBytes() / (1024.0 * 1024.0)));
     }
 
-    private static void packageRelease() {
-        stdout("> Packaging release...");
-        final File release = new File("build/release");
-        if (!release.exists()) {
-            if (!release.mkdir()) {
-                buildFail("\t-> Failed to create release directory.");
-                assert false;
+    private static Object[] execShellCommand(final File cwd, final boolean print, final String...args) throws IOException {
+        assert args != null;
+
+        final StringBuilder sb = new StringBuilder();
+        final int status = execShellCommand(cwd, line -> {
+            if (print)
+                System.out.println(line);
+            sb.append(line).append("\n");
+        }, args);
+        return new Object[] {sb.toString(), status};
+    }
+
+    // Hands every line the process prints to 'lines' as soon as it has been read, so its output never has to fit into memory at once.
+    private static int execShellCommand(final File cwd, final Consumer<String> lines, final String...args) throws IOException {
+        assert lines != null;
+        assert args != null;
+
+        final Span span = span("process", new File(args[0]).getName());
+        try {
+            final ProcessBuilder builder = new ProcessBuilder(args);
+            if (cwd != null)
+                builder.directory(cwd);
+
+            builder.redirectErrorStream(true);
+            final Process process = builder.start();
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                while (true) {
+                    final String line = reader.readLine();
+                    if (line == null)
+                        break;
+                    lines.accept(line);
+                }
+            }
+            try {
+                return process.waitFor();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+                return -1;
             }
+        } finally {
+            span.close();
         }
+    }
 
-        try {
-            Files.copy(Paths.get("build/" + programName), new File("build/release/" + programName).toPath(), StandardCopyOption.REPLACE_EXISTING);
-        } catch (final IOException ex) {
-            buildFail("\t-> Failed to copy executable to release directory.");
-            assert false;
+    // Cuts what an in-process tool writes into lines, like reading the output of a process would.
+    private static final class LineWriter extends java.io.Writer {
+
+        private final Consumer<String> lines;
+        private final StringBuilder line = new StringBuilder(256);
+
+        LineWriter(final Consumer<String> lines) {
+            assert lines != null;
+            this.lines = lines;
         }
 
-        final File libs = new File("libs");
-        if (!libs.exists()) {
-            stdout("\t-> Your program does not use any libraries.");
-        } else {
-            final File dependencies = new File("build/release/libs");
-            if (!dependencies.exists()) {
-                if (!dependencies.mkdir()) {
-                    buildFail("\t-> Failed to create libs directory.");
-                    assert false;
+        @Override
+        public void write(final char[] buffer, final int offset, final int length) {
+            for (int i = offset, end = offset + length; i < end; ++i) {
+                final char c = buffer[i];
+                if (c == '\n') {
+                    final int l = line.length();
+                    lines.accept(l > 0 && line.charAt(l - 1) == '\r' ? line.substring(0, l - 1) : line.toString());
+                    line.setLength(0);
+                } else {
+                    line.append(c);
                 }
             }
+        }
 
-            // copy dependencies
-            {
-                final File[] jars = libs.listFiles();
-                for (int i = 0, l = jars.length; i < l; ++i) {
-                    final File jar = jars[i];
-                    try {
-                        Files.copy(jar.toPath(), new File("build/release/libs/" + jar.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
-                    } catch (final IOException ex) {
-                        buildFail("Failed to copy dependency " + jar.getName() + " to release/libs directory.");
-                        assert false;
-                    }
-                }
-                if (jars.length == 1)
-                    stdout("\t-> Program uses " + jars.length + " library.");
-                else
-                    stdout("\t-> Program uses " + jars.length + " libraries.");
+        @Override
+        public void flush() {
+            // only whole lines get passed on
+        }
+
+        @Override
+        public void close() {
+            if (line.length() > 0) {
+                lines.accept(line.toString());
+                line.setLength(0);
             }
         }
+    }
 
-        new File("build/Manifest.txt").delete();
-        new File("build/" + programName).delete();
+    // Tools of the running JDK which we can call without starting another JVM, by name.
+    private static final Map<String, ToolProvider> tools = new HashMap<>();
 
-        // TODO(nschultz): Directory structure will not get copied for 'res' directory.
-        final File res = new File("res");
+    // Runs one of the JDK tools (javac, jar, javap, javadoc). If no executable has been configured for it
+    // the tool runs inside of our own JVM, otherwise (or when the JVM does not ship it) it gets started as its own process.
+    private static Object[] runTool(final String name, final String executable, final String...args) throws IOException {
+        final StringBuilder sb = new StringBuilder(1024);
+        final int status = runTool(name, executable, line -> sb.append(line).append("\n"), args);
+        return new Object[] {sb.toString(), status};
+    }
 
-        if (res.exists()) {
-            final File resTarget = new File("build/release/res");
-            if (!resTarget.exists()) {
-                if (!resTarget.mkdir()) {
-                    buildFail("\t-> Failed to create resource directory for the release.");
-                    assert false;
-                }
-            }
-            try {
-                final File[] resFiles = listAllFiles(new File("res"));
-                for (int i = 0, l = resFiles.length; i < l; ++i) {
-                    final File resFile = resFiles[i];
-                    if (resFile.isDirectory())
-                        continue;
-                    Files.copy(resFile.toPath(), new File("build/release/res/" + resFile.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
-                }
-                stdout("\t-> Copied all resources to the release.");
-            } catch (final IOException ex) {
-                buildFail("\t-> Failed to all copy resources.");
-                assert false;
+    // Like runTool() above, but hands the output to 'lines' line by line instead of collecting it.
+    private static int runTool(final String name, final String executable, final Consumer<String> lines, final String...args) throws IOException {
+        assert name != null;
+        assert executable != null;
+        assert args != null;
+
+        ToolProvider tool = null;
+        if (executable.equalsIgnoreCase("---")) {
+            synchronized (tools) {
+                tool = tools.computeIfAbsent(name, n -> ToolProvider.findFirst(n).orElse(null));
             }
-        } else {
-            stdout("\t-> Program does not use any resource files.");
         }
 
-        try {
-            final long sizeOfReleaseInBytes = Files.walk(release.toPath()).mapToLong(p -> p.toFile().length()).sum();
-            stdout(String.format("\t-> The full size of your release is %.3f %s\n", sizeOfReleaseInBytes / 1024.0f, "kb."));
-        } catch (final IOException ex) {
-            System.out.println("\t -> Failed to calculate size of your release.");
-            // lets not fail the entire build though, that seems dumb.
+        if (tool == null) {
+            final String[] command = new String[args.length + 1];
+            command[0] = executable.equalsIgnoreCase("---") ? name : executable;
+            System.arraycopy(args, 0, command, 1, args.length);
+            return execShellCommand(null, lines, command);
+        }
+
+        final Span span = span("tool", name);
+        try (final PrintWriter writer = new PrintWriter(new LineWriter(lines))) {
+            return tool.run(writer, writer, args);
+        } finally {
+            span.close();
         }
     }
 
-    private static void createExecutable() {
-        stdout("> Building executable...");
+    // Collects every emitted class file in memory instead of writing it to disk.
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
 
-        // building manifest
-        final StringBuilder mfData = new StringBuilder(64);
-        mfData.append("Manifest-Version: 1.0").append(System.lineSeparator());
+        private final Map<String, byte[]> classes;
+        private final Map<String, String> origins; // jar entry name -> absolute path of the source file, may be null
 
-        final File libs = new File("libs");
-        if (libs.exists()) {
-            final File[] jars = libs.listFiles();
-            final StringBuilder classpath = new StringBuilder(128);
-            for (int i = 0, l = jars.length; i < l; ++i) {
-                classpath.append("libs/");
-                classpath.append(jars[i].getName()).append(" ");
+        MemoryFileManager(final StandardJavaFileManager fileManager, final Map<String, byte[]> classes, final Map<String, String> origins) {
+            super(fileManager);
+            assert classes != null;
+            this.classes = classes;
+            this.origins = origins;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(final Location location, final String className, final JavaFileObject.Kind kind, final FileObject sibling) throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS)
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+
+            final String entryName = className.replace('.', '/') + ".class";
+            if (origins != null && sibling != null) {
+                synchronized (origins) {
+                    origins.put(entryName, Paths.get(sibling.toUri()).toAbsolutePath().toString());
+                }
             }
-            // class path must not end with the delimitter ' '.
-            assert classpath.toString().charAt(classpath.toString().length() - 1) == ' ';
-            classpath.deleteCharAt(classpath.toString().length() - 1);
-            assert classpath.toString().charAt(classpath.toString().length() - 1) != ' ';
+            return new SimpleJavaFileObject(URI.create("mem:///" + entryName), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream(1024) {
+                        @Override
+                        public void close() {
+                            synchronized (classes) {
+                                classes.put(entryName, toByteArray());
+                            }
+                        }
+                    };
+                }
+            };
+        }
+    }
 
-            mfData.append("Class-Path: " + classpath.toString()).append(System.lineSeparator());
+    private static Object[] compileInMemory(final List<File> sources, final List<String> options, final Map<String, byte[]> classes, final Map<String, String> origins) throws IOException {
+        assert sources != null;
+        assert options != null;
+        assert classes != null;
+
+        final JavaCompiler javac = javax.tools.ToolProvider.getSystemJavaCompiler();
+        assert javac != null;
+
+        final Object[] result = new Object[2];
+        // Without a diagnostic listener javac prints its messages in the same format as the command line tool.
+        final StringWriter output = new StringWriter(1024);
+        final Span span = span("tool", "javac");
+        try (final StandardJavaFileManager standardFileManager = javac.getStandardFileManager(null, null, java.nio.charset.Charset.forName(encoding));
+             final MemoryFileManager fileManager = new MemoryFileManager(standardFileManager, classes, origins)) {
+            final Iterable<? extends JavaFileObject> units = standardFileManager.getJavaFileObjectsFromFiles(sources);
+            final boolean success = javac.getTask(output, fileManager, null, options, null, units).call();
+            result[0] = output.toString();
+            result[1] = success ? 0 : 1;
+        } finally {
+            span.close();
         }
+        return result;
+    }
+
+    private static String sha256(final byte[] data) {
+        assert data != null;
 
-        String javacVersion = null;
         try {
-            if (compiler.equalsIgnoreCase("---")) {
-                javacVersion = (String) execShellCommand(null, null, false, "javac", "-version")[0];
-            } else {
-                javacVersion = (String) execShellCommand(null, null, false, "\"" + compiler + "\"", "-version")[0];
-            }
-        } catch (final IOException ex) {
-            javacVersion = "java";
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (final byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (final NoSuchAlgorithmException ex) {
+            // Every JVM has to support SHA-256.
+            throw new IllegalStateException(ex);
         }
-        assert javacVersion != null;
-        mfData.append("Created-By: ").append(javacVersion).append(System.lineSeparator());
-        writeToFile("build/Manifest.txt", mfData.toString());
+    }
 
-        boolean usesPackages = false;
-        {
-            final File classesDir = new File("build/classes");
-            final File[] classes = classesDir.listFiles();
-            for (int i = 0, l = classes.length; i < l; ++i) {
-                if (classes[i].isDirectory()) {
-                    usesPackages = true; // remember that just using directories are not packages, you have to use the package statement
-                    break;
-                }
-            }
+    // Minimal class file reader which only decodes what we actually need and works directly on the raw bytes.
+    // See chapter 4 of the JVM specification for the format.
+    private static final class ClassFile {
+
+        final byte[] data;
+        final int[] cpOffsets; // offset of every constant pool entry; 0 for unusable slots
+        final String name;
+        final String superName; // null for java/lang/Object and module-info
+        final String[] interfaces;
+        final int access;
+        final Member[] fields;
+        final Member[] methods;
+        final String sourceFile; // null when compiled without debug information
+        final int bootstrapMethodsOffset; // offset of the num_bootstrap_methods item, -1 if there is none
+        final String constants; // hash of all non-private compile-time constants, which javac inlines into other classes; '-' if none
+
+        static final class Member {
+            int access;
+            String name;
+            String descriptor;
+            int constantValue;            // constant pool index of a field's ConstantValue, 0 if none
+            int codeOffset = -1;          // offset of a method's first instruction, -1 for abstract and native methods
+            int codeLength;
+            int maxStack;
+            int maxLocals;
+            int exceptionTableOffset;     // offset of the exception_table_length item
         }
 
-        if (usesPackages) {
-            File[] classes = null;
-            try {
-                classes = listAllFiles(new File("build/classes"));
-            } catch (final IOException ex) {
-                buildFail("\t-> Failed to create executable.");
-                assert false;
-            }
-            assert classes != null;
+        ClassFile(final byte[] data) throws IOException {
+            assert data != null;
+            this.data = data;
 
-            final List<String> args = new ArrayList<>(classes.length);
-            if (jar.equalsIgnoreCase("---")) {
-                args.add("jar");
-            } else {
-                args.add("\"" + jar + "\"");
-            }
-            args.add("cfme");
-            args.add("../" + programName);  // gets moved to release later
-            args.add("../Manifest.txt");    // gets deleted later
+            if (data.length < 10 || u2(0) != 0xCAFE || u2(2) != 0xBABE)
+                throw new IOException("Not a class file.");
 
-            // find out entry point
-            if (entryPoint.equals("--NoMainFound--")) {
-                args.add(entryPoint);
-            } else {
-                File entryPointFile = null;
-                for (int i = 0, l = classes.length; i < l; ++i) {
-                    final File file = classes[i];
-                    if (!file.isDirectory()) {
-                        if (file.getName().split("//.")[0].equals(entryPoint + ".class"))
-                            entryPointFile = file;
-                    }
-                }
-                if (entryPointFile == null) {
-                    buildFail(String.format("\t-> Main class '%s' does not exist.", entryPoint));
+            final int cpCount = u2(8);
+            cpOffsets = new int[cpCount];
+            int offset = 10;
+            for (int i = 1; i < cpCount; ++i) {
+                cpOffsets[i] = offset;
+                final int tag = u1(offset);
+                switch (tag) {
+                    case 1:  offset += 3 + u2(offset + 1); break;        // Utf8
+                    case 3:  case 4: offset += 5; break;                  // Integer, Float
+                    case 5:  case 6: offset += 9; ++i; break;             // Long, Double take up two slots
+                    case 7:  case 8: case 16: case 19: case 20: offset += 3; break; // Class, String, MethodType, Module, Package
+                    case 9:  case 10: case 11: case 12: case 17: case 18: offset += 5; break; // refs, NameAndType, (Invoke)Dynamic
+                    case 15: offset += 4; break;                          // MethodHandle
+                    default: throw new IOException("Invalid constant pool tag " + tag + ".");
                 }
-                args.add(entryPointFile.getPath().replace("build\\", "").replace("classes\\", "").replace(".class", "").replace("\\", "."));
             }
 
-            // classpath
-            for (int i = 0, l = classes.length; i < l; ++i) {
-                final File file = classes[i];
-                if (!file.isDirectory()) {
-                    args.add(file.getPath().replace("build\\", "").replace("classes\\", ""));
-                }
+            access = u2(offset);
+            offset += 2;
+            name = className(u2(offset));
+            final int superIndex = u2(offset + 2);
+            superName = superIndex == 0 ? null : className(superIndex);
+            offset += 4;
+
+            interfaces = new String[u2(offset)];
+            offset += 2;
+            for (int i = 0; i < interfaces.length; ++i, offset += 2)
+                interfaces[i] = className(u2(offset));
+
+            fields = new Member[u2(offset)];
+            offset = readMembers(offset + 2, fields);
+            methods = new Member[u2(offset)];
+            offset = readMembers(offset + 2, methods);
+
+            String source = null;
+            int bootstrapMethods = -1;
+            final int attributeCount = u2(offset);
+            offset += 2;
+            for (int i = 0; i < attributeCount; ++i) {
+                final String attribute = utf8(u2(offset));
+                if (attribute.equals("SourceFile"))
+                    source = utf8(u2(offset + 6));
+                else if (attribute.equals("BootstrapMethods"))
+                    bootstrapMethods = offset + 6;
+                offset += 6 + u4(offset + 2);
             }
+            sourceFile = source;
+            bootstrapMethodsOffset = bootstrapMethods;
 
-            try {
-                // TODO(nschultz): Check result in case of error
-                stdout("\t-> Java packages are used.");
-                execShellCommand(null, new File("build/classes"), false, (String[]) args.toArray(String[]::new));
-            } catch (final IOException ex) {
-               buildFail("->\t Failed to create executable.");
-               assert false;
+            final StringBuilder constantValues = new StringBuilder();
+            for (final Member field : fields) {
+                if (field.constantValue == 0 || (field.access & 0x0002) != 0) // private constants never leave the class
+                    continue;
+                final int valueOffset = cpOffsets[field.constantValue];
+                constantValues.append(field.name).append('=');
+                if (u1(valueOffset) == 8) // String
+                    constantValues.append(utf8(u2(valueOffset + 1)));
+                else if (u1(valueOffset) == 5 || u1(valueOffset) == 6) // Long, Double
+                    constantValues.append(u4(valueOffset + 1)).append(':').append(u4(valueOffset + 5));
+                else
+                    constantValues.append(u4(valueOffset + 1));
+                constantValues.append('\n');
             }
-        } else {
-            try {
-                // TODO(nschultz): Check result in case of error
-                stdout("\t-> No java packages are used.");
-                if (jar.equalsIgnoreCase("---")) {
-                    execShellCommand(null, new File("build/classes"), false, "jar", "cfme", "../" + programName, "../Manifest.txt", entryPoint, "*.class");
-                } else {
-                    execShellCommand(null, new File("build/classes"), false, "\"" + jar + "\"", "cfme", "../" + programName, "../Manifest.txt", entryPoint, "*.class");
+            constants = constantValues.length() == 0 ? "-" : sha256(constantValues.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private int readMembers(int offset, final Member[] members) {
+            for (int i = 0; i < members.length; ++i) {
+                final Member member = new Member();
+                member.access = u2(offset);
+                member.name = utf8(u2(offset + 2));
+                member.descriptor = utf8(u2(offset + 4));
+                final int attributeCount = u2(offset + 6);
+                offset += 8;
+                for (int j = 0; j < attributeCount; ++j) {
+                    final String attribute = utf8(u2(offset));
+                    if (attribute.equals("ConstantValue")) {
+                        member.constantValue = u2(offset + 6);
+                    } else if (attribute.equals("Code")) {
+                        member.maxStack = u2(offset + 6);
+                        member.maxLocals = u2(offset + 8);
+                        member.codeLength = u4(offset + 10);
+                        member.codeOffset = offset + 14;
+                        member.exceptionTableOffset = member.codeOffset + member.codeLength;
+                    }
+                    offset += 6 + u4(offset + 2);
                 }
-            } catch (final IOException ex) {
-               buildFail("->\t Failed to create executable.");
-               assert false;
+                members[i] = member;
             }
+            return offset;
         }
 
-        final File program = new File("build/" + programName);
-        if (program.length() == 0) {
-            buildFail("\t-> Failed to create executable.");
-            assert false;
+        int u1(final int offset) {
+            return data[offset] & 0xFF;
         }
 
-        stdout(String.format("\t-> Size of executable is %.3f %s\n", program.length() / 1024.0f, "kb."));
-    }
+        int u2(final int offset) {
+            return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+        }
 
-    private static void createByteCodeFiles() {
-        stdout("> Generating readable bytecode files for easier debugging...");
+        int u4(final int offset) {
+            return (u2(offset) << 16) | u2(offset + 2);
+        }
 
-        final File bytecode = new File("build/bytecode");
-        if (!bytecode.exists()) {
-            if (!bytecode.mkdir()) {
-                buildFail("\t-> Failed to create bytecode directory.");
-                assert false;
-            }
+        int tag(final int index) {
+            return cpOffsets[index] == 0 ? 0 : u1(cpOffsets[index]);
         }
 
-        int numberOfByteCodeInstructions = 0;
-        int numberOfMethods = 0;
-        int numberOfFields = 0;
-        int numberOfNewCalls = 0;
-        final File out = new File("bytecode_tmp.txt");
-        try {
-            if (!out.exists())
-                out.createNewFile();
+        String utf8(final int index) {
+            final int offset = cpOffsets[index];
+            assert u1(offset) == 1;
 
-            File[] classes = null;
+            final int length = u2(offset + 1);
+            boolean ascii = true;
+            for (int i = offset + 3, l = offset + 3 + length; i < l; ++i) {
+                if (data[i] <= 0) { // modified UTF-8 never contains a real zero byte
+                    ascii = false;
+                    break;
+                }
+            }
+            if (ascii)
+                return new String(data, offset + 3, length, StandardCharsets.ISO_8859_1);
             try {
-                classes = listAllFiles(new File("build/classes"));
+                return new java.io.DataInputStream(new ByteArrayInputStream(data, offset + 1, length + 2)).readUTF();
             } catch (final IOException ex) {
-                buildFail("\t-> Failed to generate readable bytecode files.");
-                assert false;
+                return "";
             }
-            assert classes != null;
+        }
 
-            final List<String> sclasses = new ArrayList<>(classes.length);
-            if (bytecodeViewer.equalsIgnoreCase("---")) {
-                sclasses.add("javap");
-            } else {
-                if (new File(bytecodeViewer).exists()) {
-                    sclasses.add("\"" + bytecodeViewer + "\"");
-                } else {
-                    buildFail("Specified bytecode viewer executable does not exist.");
-                    assert false;
+        String className(final int index) {
+            return utf8(u2(cpOffsets[index] + 1));
+        }
+
+        // Every class name which occurs in the constant pool, either directly or inside of a descriptor or signature.
+        Set<String> references() {
+            final Set<String> result = new HashSet<>();
+            for (int i = 1; i < cpOffsets.length; ++i) {
+                final int tag = tag(i);
+                if (tag == 7) {
+                    final String name = className(i);
+                    if (name.startsWith("["))
+                        collectDescriptorReferences(name, result);
+                    else
+                        result.add(name);
+                } else if (tag == 1) {
+                    collectDescriptorReferences(utf8(i), result);
                 }
             }
-            sclasses.add("-c");
-            sclasses.add("-p");
-            for (final File file : classes) {
-                if (!file.isDirectory())
-                    sclasses.add(file.getAbsolutePath());
-            }
+            result.remove(name);
+            return result;
+        }
 
-            final Object[] result = execShellCommand(out, null, false, (String[]) sclasses.toArray(String[]::new));
+        private static void collectDescriptorReferences(final String str, final Set<String> result) {
+            for (int i = str.indexOf('L'); i != -1; i = str.indexOf('L', i + 1)) {
+                if (i != 0 && "([;)<>:*+-^".indexOf(str.charAt(i - 1)) == -1)
+                    continue;
+                int end = i + 1;
+                while (end < str.length() && "<;().[ ".indexOf(str.charAt(end)) == -1)
+                    end += 1;
+                if (end > i + 1 && end < str.length() && (str.charAt(end) == ';' || str.charAt(end) == '<'))
+                    result.add(str.substring(i + 1, end));
+            }
+        }
 
-            {
-                final String[] lines = ((String) result[0]).split(System.lineSeparator());
-                for (int i = 0, l = lines.length; i < l; ++i) {
-                    final String line = lines[i];
-                    if (line.contains(":") && !line.equalsIgnoreCase("Code") && !line.equalsIgnoreCase("table")) {
-                        numberOfByteCodeInstructions += 1;
-                        final String stripedLine = line.strip();
-                        if (!stripedLine.contains("Code:")) {
-                            final String[] arr = line.strip().split(" ");
-                            if (arr.length > 1) {
-                                final String instruction = arr[1];
-                                if (instruction.equals("new"))
-                                    numberOfNewCalls += 1;
-                                else if (instruction.contains("invoke"))
-                                    numberOfMethods += 1;
-                                else if (instruction.equals("putfield"))
-                                    numberOfFields += 1;
-                            }
-                        }
+        static final String[] OPCODES = (
+            "nop aconst_null iconst_m1 iconst_0 iconst_1 iconst_2 iconst_3 iconst_4 iconst_5 lconst_0 lconst_1 fconst_0 fconst_1 fconst_2 " +
+            "dconst_0 dconst_1 bipush sipush ldc ldc_w ldc2_w iload lload fload dload aload iload_0 iload_1 iload_2 iload_3 lload_0 lload_1 " +
+            "lload_2 lload_3 fload_0 fload_1 fload_2 fload_3 dload_0 dload_1 dload_2 dload_3 aload_0 aload_1 aload_2 aload_3 iaload laload " +
+            "faload daload aaload baload caload saload istore lstore fstore dstore astore istore_0 istore_1 istore_2 istore_3 lstore_0 " +
+            "lstore_1 lstore_2 lstore_3 fstore_0 fstore_1 fstore_2 fstore_3 dstore_0 dstore_1 dstore_2 dstore_3 astore_0 astore_1 astore_2 " +
+            "astore_3 iastore lastore fastore dastore aastore bastore castore sastore pop pop2 dup dup_x1 dup_x2 dup2 dup2_x1 dup2_x2 swap " +
+            "iadd ladd fadd dadd isub lsub fsub dsub imul lmul fmul dmul idiv ldiv fdiv ddiv irem lrem frem drem ineg lneg fneg dneg ishl " +
+            "lshl ishr lshr iushr lushr iand land ior lor ixor lxor iinc i2l i2f i2d l2i l2f l2d f2i f2l f2d d2i d2l d2f i2b i2c i2s lcmp " +
+            "fcmpl fcmpg dcmpl dcmpg ifeq ifne iflt ifge ifgt ifle if_icmpeq if_icmpne if_icmplt if_icmpge if_icmpgt if_icmple if_acmpeq " +
+            "if_acmpne goto jsr ret tableswitch lookupswitch ireturn lreturn freturn dreturn areturn return getstatic putstatic getfield " +
+            "putfield invokevirtual invokespecial invokestatic invokeinterface invokedynamic new newarray anewarray arraylength athrow " +
+            "checkcast instanceof monitorenter monitorexit wide multianewarray ifnull ifnonnull goto_w jsr_w").split(" ");
 
-                    }
+        static final byte[] OPCODE_LENGTHS = new byte[256];
+        static {
+            java.util.Arrays.fill(OPCODE_LENGTHS, (byte) 1);
+            OPCODE_LENGTHS[16] = 2; // bipush
+            OPCODE_LENGTHS[17] = 3; // sipush
+            OPCODE_LENGTHS[18] = 2; // ldc
+            OPCODE_LENGTHS[19] = 3; // ldc_w
+            OPCODE_LENGTHS[20] = 3; // ldc2_w
+            for (int i = 21; i <= 25; ++i) OPCODE_LENGTHS[i] = 2;  // xload
+            for (int i = 54; i <= 58; ++i) OPCODE_LENGTHS[i] = 2;  // xstore
+            OPCODE_LENGTHS[132] = 3; // iinc
+            for (int i = 153; i <= 168; ++i) OPCODE_LENGTHS[i] = 3; // if*, goto, jsr
+            OPCODE_LENGTHS[169] = 2; // ret
+            for (int i = 178; i <= 184; ++i) OPCODE_LENGTHS[i] = 3; // field access and invokes
+            OPCODE_LENGTHS[185] = 5; // invokeinterface
+            OPCODE_LENGTHS[186] = 5; // invokedynamic
+            OPCODE_LENGTHS[187] = 3; // new
+            OPCODE_LENGTHS[188] = 2; // newarray
+            OPCODE_LENGTHS[189] = 3; // anewarray
+            OPCODE_LENGTHS[192] = 3; // checkcast
+            OPCODE_LENGTHS[193] = 3; // instanceof
+            OPCODE_LENGTHS[197] = 4; // multianewarray
+            OPCODE_LENGTHS[198] = 3; // ifnull
+            OPCODE_LENGTHS[199] = 3; // ifnonnull
+            OPCODE_LENGTHS[200] = 5; // goto_w
+            OPCODE_LENGTHS[201] = 5; // jsr_w
+        }
+
+        // Length in bytes of the instruction at 'pc' of the code starting at 'codeOffset'.
+        int instructionLength(final int codeOffset, final int pc) {
+            final int opcode = u1(codeOffset + pc);
+            if (opcode == 170) { // tableswitch
+                final int operands = (pc + 4) & ~3; // padded to a multiple of four
+                return operands - pc + 12 + (u4(codeOffset + operands + 8) - u4(codeOffset + operands + 4) + 1) * 4;
+            } else if (opcode == 171) { // lookupswitch
+                final int operands = (pc + 4) & ~3;
+                return operands - pc + 8 + u4(codeOffset + operands + 4) * 8;
+            } else if (opcode == 196) { // wide
+                return u1(codeOffset + pc + 1) == 132 ? 6 : 4;
+            }
+            return OPCODE_LENGTHS[opcode];
+        }
+
+        // Class of the bootstrap method behind an InvokeDynamic constant, like java/lang/invoke/LambdaMetafactory.
+        String bootstrapOwner(final int index) {
+            if (bootstrapMethodsOffset == -1 || tag(index) != 18)
+                return "";
+            final int bootstrapIndex = u2(cpOffsets[index] + 1);
+            int offset = bootstrapMethodsOffset + 2;
+            for (int i = 0; i < bootstrapIndex; ++i)
+                offset += 4 + u2(offset + 2) * 2;
+            final int handle = u2(offset);
+            return className(u2(cpOffsets[u2(cpOffsets[handle] + 2)] + 1));
+        }
+
+        // The line number table of the method as {start pcs, lines}, sorted by pc. Both are empty when compiled without line numbers.
+        int[][] lineNumbers(final Member method) {
+            int offset = method.exceptionTableOffset + 2 + u2(method.exceptionTableOffset) * 8;
+            final int attributeCount = u2(offset);
+            offset += 2;
+            long[] entries = new long[0]; // start pc in the upper half, so sorting orders them by pc
+            for (int i = 0; i < attributeCount; ++i) {
+                if (utf8(u2(offset)).equals("LineNumberTable")) {
+                    final int count = u2(offset + 6);
+                    entries = Arrays.copyOf(entries, entries.length + count);
+                    for (int j = 0; j < count; ++j)
+                        entries[entries.length - count + j] = (long) u2(offset + 8 + j * 4) << 32 | u2(offset + 10 + j * 4);
+                }
+                offset += 6 + u4(offset + 2);
+            }
+            Arrays.sort(entries);
+            final int[][] table = {new int[entries.length], new int[entries.length]};
+            for (int i = 0; i < entries.length; ++i) {
+                table[0][i] = (int) (entries[i] >>> 32);
+                table[1][i] = (int) entries[i];
+            }
+            return table;
+        }
+
+        // Whether the instruction at a pc is inside of a loop, by pc. A branch going backwards is what javac emits for every loop.
+        boolean[] loopCode(final Member method) {
+            final int[] depth = new int[method.codeLength + 1]; // +1 where a loop starts, -1 right after its branch back
+            for (int pc = 0; pc < method.codeLength; pc += instructionLength(method.codeOffset, pc)) {
+                final int opcode = u1(method.codeOffset + pc);
+                int target = pc;
+                if ((opcode >= 153 && opcode <= 167) || opcode == 198 || opcode == 199) // if*, goto
+                    target = pc + (short) u2(method.codeOffset + pc + 1);
+                else if (opcode == 200) // goto_w
+                    target = pc + u4(method.codeOffset + pc + 1);
+                if (target < pc && target >= 0) {
+                    depth[target] += 1;
+                    depth[pc + 1] -= 1;
                 }
             }
+            final boolean[] result = new boolean[method.codeLength];
+            for (int pc = 0, loops = 0; pc < method.codeLength; ++pc) {
+                loops += depth[pc];
+                result[pc] = loops > 0;
+            }
+            return result;
+        }
 
-            final String[] files = ((String) result[0]).split("Compiled from");
-            for (int i = 0, l = files.length; i < l; ++i) {
-                final String file = files[i];
-                if (file.strip().isEmpty())
-                    continue;
+        // Human readable listing of the class in the spirit of 'javap -c -p'.
+        String disassemble() {
+            final StringBuilder sb = new StringBuilder(data.length * 4);
+            if (sourceFile != null)
+                sb.append("Compiled from \"").append(sourceFile).append("\"\n");
 
-                final String[] lines = file.split(System.lineSeparator());
+            final String className = name.replace('/', '.');
+            sb.append(modifiers(access & ~0x0020 & ~0x0200 & ~0x0400 & ~0x4000 & ~0x2000, false)); // ACC_SUPER and the kind are not modifiers
+            if ((access & 0x2000) != 0)
+                sb.append("@interface ");
+            else if ((access & 0x0200) != 0)
+                sb.append("interface ");
+            else if ((access & 0x4000) != 0)
+                sb.append(((access & 0x0400) != 0 ? "abstract " : "")).append("enum ");
+            else
+                sb.append((access & 0x0400) != 0 ? "abstract class " : "class ");
+            sb.append(className);
+            if (superName != null && (access & 0x0200) == 0)
+                sb.append(" extends ").append(superName.replace('/', '.'));
+            if (interfaces.length != 0) {
+                sb.append((access & 0x0200) != 0 ? " extends " : " implements ");
+                for (int i = 0; i < interfaces.length; ++i)
+                    sb.append(i == 0 ? "" : ", ").append(interfaces[i].replace('/', '.'));
+            }
+            sb.append(" {\n");
 
-                String fileName = null;
-                for (int j = 0; j < lines.length; ++j) {
-                    if (lines[j].contains("class") || lines[j].contains("interface")) {
-                        final String[] words = lines[j].split(" ");
-                        for (int k = 0; k < words.length; ++k) {
-                            if (words[k].equals("class") || words[k].equals("interface")) {
-                                fileName = words[k + 1] + ".bytecode";
-                                break;
-                            }
+            for (final Member field : fields) {
+                sb.append("  ").append(modifiers(field.access, false)).append(javaType(field.descriptor, 0)).append(' ').append(field.name).append(";\n");
+                if (field.constantValue != 0)
+                    sb.append("    ConstantValue: ").append(constant(field.constantValue)).append('\n');
+            }
+            if (fields.length != 0)
+                sb.append('\n');
+
+            for (int m = 0; m < methods.length; ++m) {
+                final Member method = methods[m];
+                sb.append("  ");
+                if (method.name.equals("<clinit>")) {
+                    sb.append("static {}");
+                } else {
+                    sb.append(modifiers(method.access, true));
+                    final int returnType = method.descriptor.indexOf(')') + 1;
+                    if (method.name.equals("<init>"))
+                        sb.append(className);
+                    else
+                        sb.append(javaType(method.descriptor, returnType)).append(' ').append(method.name);
+                    sb.append('(');
+                    for (int i = 1; i < returnType - 1; i = skipType(method.descriptor, i))
+                        sb.append(i == 1 ? "" : ", ").append(javaType(method.descriptor, i));
+                    sb.append(')');
+                }
+                sb.append(";\n");
+                sb.append("    descriptor: ").append(method.descriptor).append('\n');
+
+                if (method.codeOffset != -1) {
+                    sb.append("    Code:\n");
+                    sb.append("      stack=").append(method.maxStack).append(", locals=").append(method.maxLocals).append('\n');
+                    for (int pc = 0; pc < method.codeLength; pc += instructionLength(method.codeOffset, pc))
+                        disassembleInstruction(sb, method.codeOffset, pc);
+
+                    final int exceptionCount = u2(method.exceptionTableOffset);
+                    if (exceptionCount != 0) {
+                        sb.append("      Exception table:\n");
+                        sb.append("         from    to  target type\n");
+                        for (int i = 0; i < exceptionCount; ++i) {
+                            final int entry = method.exceptionTableOffset + 2 + i * 8;
+                            final int catchType = u2(entry + 6);
+                            sb.append(String.format("        %5d %5d %5d   %s\n", u2(entry), u2(entry + 2), u2(entry + 4), catchType == 0 ? "any" : "Class " + className(catchType)));
                         }
-                        break;
                     }
                 }
+                if (m != methods.length - 1)
+                    sb.append('\n');
+            }
+            sb.append("}\n");
+            return sb.toString();
+        }
 
-                if (fileName == null)
-                    continue;
+        private void disassembleInstruction(final StringBuilder sb, final int codeOffset, final int pc) {
+            final int opcode = u1(codeOffset + pc);
+            final int at = codeOffset + pc;
+            final int lineStart = sb.length();
+            sb.append(String.format("%10d: ", pc));
+            sb.append(opcode < OPCODES.length ? OPCODES[opcode] : "<illegal opcode " + opcode + ">");
 
-                final StringBuilder content = new StringBuilder();
-                for (int j = 1; j < lines.length; ++j)
-                    content.append(lines[j]).append("\n");
-                writeToFile("build/bytecode/" + fileName, content.toString());
+            String comment = null;
+            switch (opcode) {
+                case 16: // bipush
+                    sb.append(' ').append(data[at + 1]);
+                    break;
+                case 17: // sipush
+                    sb.append(' ').append((short) u2(at + 1));
+                    break;
+                case 18: // ldc
+                    sb.append(" #").append(u1(at + 1));
+                    comment = constant(u1(at + 1));
+                    break;
+                case 132: // iinc
+                    sb.append(' ').append(u1(at + 1)).append(", ").append(data[at + 2]);
+                    break;
+                case 169: // ret
+                    sb.append(' ').append(u1(at + 1));
+                    break;
+                case 185: // invokeinterface
+                    sb.append(" #").append(u2(at + 1)).append(",  ").append(u1(at + 3));
+                    comment = constant(u2(at + 1));
+                    break;
+                case 188: { // newarray
+                    final String[] types = {"boolean", "char", "float", "double", "byte", "short", "int", "long"};
+                    final int type = u1(at + 1);
+                    sb.append(' ').append(type >= 4 && type <= 11 ? types[type - 4] : String.valueOf(type));
+                    break;
+                }
+                case 197: // multianewarray
+                    sb.append(" #").append(u2(at + 1)).append(",  ").append(u1(at + 3));
+                    comment = constant(u2(at + 1));
+                    break;
+                case 200: case 201: // goto_w, jsr_w
+                    sb.append(' ').append(pc + u4(at + 1));
+                    break;
+                case 196: { // wide
+                    final int modified = u1(at + 1);
+                    sb.append(' ').append(OPCODES[modified]).append(' ').append(u2(at + 2));
+                    if (modified == 132)
+                        sb.append(", ").append((short) u2(at + 4));
+                    break;
+                }
+                case 170: { // tableswitch
+                    final int operands = codeOffset + ((pc + 4) & ~3);
+                    final int low = u4(operands + 4);
+                    final int high = u4(operands + 8);
+                    sb.append(" { // ").append(low).append(" to ").append(high).append('\n');
+                    for (int i = 0; i <= high - low; ++i)
+                        sb.append(String.format("%24d: %d\n", low + i, pc + u4(operands + 12 + i * 4)));
+                    sb.append(String.format("%24s: %d\n", "default", pc + u4(operands)));
+                    sb.append("            }");
+                    break;
+                }
+                case 171: { // lookupswitch
+                    final int operands = codeOffset + ((pc + 4) & ~3);
+                    final int pairs = u4(operands + 4);
+                    sb.append(" { // ").append(pairs).append('\n');
+                    for (int i = 0; i < pairs; ++i)
+                        sb.append(String.format("%24d: %d\n", u4(operands + 8 + i * 8), pc + u4(operands + 12 + i * 8)));
+                    sb.append(String.format("%24s: %d\n", "default", pc + u4(operands)));
+                    sb.append("            }");
+                    break;
+                }
+                default:
+                    if (OPCODE_LENGTHS[opcode] == 1) { // no operands
+                        break;
+                    } else if ((opcode >= 21 && opcode <= 25) || (opcode >= 54 && opcode <= 58)) { // local variable index
+                        sb.append(' ').append(u1(at + 1));
+                    } else if ((opcode >= 153 && opcode <= 168) || opcode == 198 || opcode == 199) { // branches
+                        sb.append(' ').append(pc + (short) u2(at + 1));
+                    } else { // everything else takes a two byte constant pool index
+                        sb.append(" #").append(u2(at + 1));
+                        comment = constant(u2(at + 1));
+                    }
+                    break;
             }
-            stdout(String.format("\t-> Total of %d bytecode instructions.\n", numberOfByteCodeInstructions));
-            stdout(String.format("\t-> Total of %d function calls.\n", numberOfMethods));
-            stdout(String.format("\t-> Total of %d fields.\n", numberOfFields));
-            stdout(String.format("\t-> Total of %d 'new' calls (likely resulting in heap allocations).\n", numberOfNewCalls));
-        } catch (final IOException ex) {
-            stdout("\t-> Failed to generate readable bytecode files.");
-        } finally {
-            if (!out.delete())
-                stdout("\t-> Failed to delete bytecode_tmp.txt file.");
+            if (comment != null) {
+                while (sb.length() - lineStart < 46)
+                    sb.append(' ');
+                sb.append("// ").append(comment);
+            }
+            sb.append('\n');
+        }
+
+        // Description of a constant pool entry as it would appear in a comment of javap.
+        String constant(final int index) {
+            if (index <= 0 || index >= cpOffsets.length || cpOffsets[index] == 0)
+                return "<invalid constant #" + index + ">";
+
+            final int offset = cpOffsets[index];
+            switch (tag(index)) {
+                case 1:  return utf8(index);
+                case 3:  return "int " + u4(offset + 1);
+                case 4:  return "float " + Float.intBitsToFloat(u4(offset + 1)) + "f";
+                case 5:  return "long " + ((((long) u4(offset + 1)) << 32) | (u4(offset + 5) & 0xFFFFFFFFL)) + "l";
+                case 6:  return "double " + Double.longBitsToDouble((((long) u4(offset + 1)) << 32) | (u4(offset + 5) & 0xFFFFFFFFL)) + "d";
+                case 7:  return "class " + className(index);
+                case 8:  return "String " + utf8(u2(offset + 1)).replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+                case 9:  return "Field " + memberReference(index);
+                case 10: return "Method " + memberReference(index);
+                case 11: return "InterfaceMethod " + memberReference(index);
+                case 12: return nameAndType(index);
+                case 15: return "MethodHandle " + u1(offset + 1) + ":" + constant(u2(offset + 2));
+                case 16: return "MethodType " + utf8(u2(offset + 1));
+                case 17: return "Dynamic #" + u2(offset + 1) + ":" + nameAndType(u2(offset + 3));
+                case 18: return "InvokeDynamic #" + u2(offset + 1) + ":" + nameAndType(u2(offset + 3));
+                case 19: return "Module " + utf8(u2(offset + 1));
+                case 20: return "Package " + utf8(u2(offset + 1));
+                default: return "<unknown constant #" + index + ">";
+            }
+        }
+
+        String memberReference(final int index) {
+            final int offset = cpOffsets[index];
+            return className(u2(offset + 1)) + "." + nameAndType(u2(offset + 3));
+        }
+
+        String nameAndType(final int index) {
+            final int offset = cpOffsets[index];
+            final String name = utf8(u2(offset + 1));
+            return (name.startsWith("<") ? "\"" + name + "\"" : name) + ":" + utf8(u2(offset + 3));
+        }
+
+        private static String modifiers(final int access, final boolean method) {
+            final StringBuilder sb = new StringBuilder(32);
+            if ((access & 0x0001) != 0) sb.append("public ");
+            if ((access & 0x0002) != 0) sb.append("private ");
+            if ((access & 0x0004) != 0) sb.append("protected ");
+            if ((access & 0x0008) != 0) sb.append("static ");
+            if ((access & 0x0010) != 0) sb.append("final ");
+            if (method) {
+                if ((access & 0x0020) != 0) sb.append("synchronized ");
+                if ((access & 0x0100) != 0) sb.append("native ");
+                if ((access & 0x0400) != 0) sb.append("abstract ");
+                if ((access & 0x0800) != 0) sb.append("strictfp ");
+            } else {
+                if ((access & 0x0040) != 0) sb.append("volatile ");
+                if ((access & 0x0080) != 0) sb.append("transient ");
+            }
+            return sb.toString();
+        }
+
+        // Index right after the type starting at 'index' of the descriptor.
+        private static int skipType(final String descriptor, int index) {
+            while (descriptor.charAt(index) == '[')
+                index += 1;
+            if (descriptor.charAt(index) == 'L')
+                index = descriptor.indexOf(';', index);
+            return index + 1;
+        }
+
+        // Java notation of the type starting at 'index' of the descriptor.
+        private static String javaType(final String descriptor, final int index) {
+            int dimensions = 0;
+            while (descriptor.charAt(index + dimensions) == '[')
+                dimensions += 1;
+
+            final String type;
+            final int start = index + dimensions;
+            switch (descriptor.charAt(start)) {
+                case 'B': type = "byte"; break;
+                case 'C': type = "char"; break;
+                case 'D': type = "double"; break;
+                case 'F': type = "float"; break;
+                case 'I': type = "int"; break;
+                case 'J': type = "long"; break;
+                case 'S': type = "short"; break;
+                case 'Z': type = "boolean"; break;
+                case 'V': type = "void"; break;
+                default:  type = descriptor.substring(start + 1, descriptor.indexOf(';', start)).replace('/', '.'); break;
+            }
+            return dimensions == 0 ? type : type + "[]".repeat(dimensions);
         }
     }
 
-    private static void createClassFiles() {
-        try {
-            stdout(String.format("> Parsing and emitting bytecode instructions (%s)...\n", mode));
+    // What we remember about every class between two incremental builds.
+    private static final class IncrementalClass {
+        String source;
+        String constants;
+        final List<String> supertypes = new ArrayList<>();
+        final List<String> references = new ArrayList<>(); // only classes of this project
+    }
 
-            final char classpathSeparator = System.getProperty("os.name").toLowerCase().contains("win") ? ';' : ':';
-            int numberOfClassFiles = 0;
-            int numberOfAnonymousClassFiles = 0;
+    private static final class IncrementalState {
+        String key = "";
+        final Map<String, String> hashes = new TreeMap<>();                // source path -> content hash
+        final Map<String, IncrementalClass> classes = new TreeMap<>();     // internal class name -> info
 
-            final File libs = new File("libs");
-            final StringBuilder classpath = new StringBuilder(128);
-            if (libs.exists()) {
-                final File[] jars = libs.listFiles();
-                for (int i = 0, l = jars.length; i < l; ++i) {
-                    classpath.append("libs/");
-                    classpath.append(jars[i].getName()).append(classpathSeparator);
+        static IncrementalState load(final File file) {
+            if (!file.exists())
+                return null;
+
+            final IncrementalState state = new IncrementalState();
+            try {
+                String source = null;
+                for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    final String[] parts = line.split(" ", 3);
+                    if (parts[0].equals("key")) {
+                        state.key = parts[1];
+                    } else if (parts[0].equals("source")) {
+                        source = parts[2];
+                        state.hashes.put(source, parts[1]);
+                    } else if (parts[0].equals("class")) {
+                        final String[] fields = line.split(" ");
+                        if (fields.length != 5 || source == null)
+                            return null;
+                        final IncrementalClass info = new IncrementalClass();
+                        info.source = source;
+                        info.constants = fields[2];
+                        if (!fields[3].equals("-"))
+                            info.supertypes.addAll(List.of(fields[3].split(",")));
+                        if (!fields[4].equals("-"))
+                            info.references.addAll(List.of(fields[4].split(",")));
+                        state.classes.put(fields[1], info);
+                    }
                 }
-                // class path must not end with the delimitter
-                assert classpath.toString().charAt(classpath.toString().length() - 1) == classpathSeparator;
-                classpath.deleteCharAt(classpath.toString().length() - 1);
-                assert classpath.toString().charAt(classpath.toString().length() - 1) != classpathSeparator;
+            } catch (final IOException | RuntimeException ex) {
+                return null; // a broken state simply results in a full build
             }
-            final File classes = new File("build/classes");
-            if (!classes.exists()) {
-                if (!classes.mkdir()) {
-                    buildFail("\t-> Failed to create classes directory.");
-                    assert false;
+            return state;
+        }
+
+        void save(final File file) {
+            final Map<String, List<String>> classesBySource = new TreeMap<>();
+            for (final Map.Entry<String, IncrementalClass> entry : classes.entrySet())
+                classesBySource.computeIfAbsent(entry.getValue().source, k -> new ArrayList<>()).add(entry.getKey());
+
+            final StringBuilder sb = new StringBuilder(4096);
+            sb.append("key ").append(key).append("\n");
+            for (final Map.Entry<String, String> entry : hashes.entrySet()) {
+                sb.append("source ").append(entry.getValue()).append(" ").append(entry.getKey()).append("\n");
+                for (final String name : classesBySource.getOrDefault(entry.getKey(), List.of())) {
+                    final IncrementalClass info = classes.get(name);
+                    sb.append("class ").append(name).append(" ").append(info.constants).append(" ");
+                    sb.append(info.supertypes.isEmpty() ? "-" : String.join(",", info.supertypes)).append(" ");
+                    sb.append(info.references.isEmpty() ? "-" : String.join(",", info.references)).append("\n");
                 }
             }
-            Object[] result = null;
+            writeToFile(file.getPath(), sb.toString());
+        }
+    }
 
-            // For now we print a maximum number of 5 errors (-Xmaxerrs 5)
-            // We also disable warning (-nowarn) because they are hardly every useful (execpt deprecated warnings)
+    private static void writeJar(final File file, final String manifest, final Map<String, byte[]> entries) throws IOException {
+        assert file != null;
+        assert manifest != null;
+        assert entries != null;
 
-            // TODO(nschultz): We only get warnings about deprecation displayed iff also at the same time
-            // encounter an (or multiple) compilation errors. Otherwise warnings will not get shown
-            // to the user. This is not what we want, I think.
-            {
-                // TODO(nschultz): There seems to be javax.tool.JavaCompiler class which can do the compile while giving me more control (we can format nice error message more easily)
-                // Check whether we can use that instead of relying on javac in the path.
-                String debugFlag = null;
-                if (mode.equalsIgnoreCase("debug")) {
-                    debugFlag = "-g";
-                } else if (mode.equalsIgnoreCase("release")) {
-                    debugFlag = "-g:none";
-                } else {
-                    assert false;
+        // Sorted, with the same time for every entry, the same input always results in the same bytes.
+        final java.time.LocalDateTime time = jarEntryTime();
+        try (final JarOutputStream out = new JarOutputStream(new FileOutputStream(file))) {
+            if (compressionLevel > 0)
+                out.setLevel(compressionLevel);
+            putJarEntry(out, new JarEntry("META-INF/"), new byte[0], time);
+            // Going through Manifest wraps long lines (like the Class-Path) the way the JVM expects them.
+            final ByteArrayOutputStream mfData = new ByteArrayOutputStream(256);
+            new Manifest(new ByteArrayInputStream(manifest.getBytes(StandardCharsets.UTF_8))).write(mfData);
+            putJarEntry(out, new JarEntry("META-INF/MANIFEST.MF"), mfData.toByteArray(), time);
+            final Set<String> directories = new HashSet<>();
+            directories.add("META-INF/");
+            for (final Map.Entry<String, byte[]> entry : new TreeMap<>(entries).entrySet()) {
+                // Like the jar tool we also emit entries for the package directories.
+                final String name = entry.getKey();
+                for (int i = name.indexOf('/'); i != -1; i = name.indexOf('/', i + 1)) {
+                    final String directory = name.substring(0, i + 1);
+                    if (directories.add(directory))
+                        putJarEntry(out, new JarEntry(directory), new byte[0], time);
                 }
-                if (classpath.toString().isEmpty()) { // we have NO libraries
-                    if (compiler.equalsIgnoreCase("---")) {
-                        result = execShellCommand(null, null, false, "javac", "@sources.txt", "-Xdiags:verbose", "-Xlint:deprecation", "-Xmaxerrs", "5", "-nowarn", debugFlag, "-d", "build/classes", "-encoding", encoding);
-                    } else {
-                        final File compilerExecutable = new File(compiler);
-                        if (!compilerExecutable.exists()) {
-                            buildFail("\t-> Specified compiler executable does not exist.");
-                            assert false;
-                        } else {
-                            result = execShellCommand(null, null, false, compiler, "@sources.txt", "-Xdiags:verbose", "-Xlint:deprecation", "-Xmaxerrs", "5", "-nowarn", debugFlag, "-d", "build/classes", "-encoding", encoding);
+                putJarEntry(out, new JarEntry(name), entry.getValue(), time);
+            }
+        }
+        traceWritten(file.length());
+    }
+
+    private static void putJarEntry(final JarOutputStream out, final JarEntry entry, final byte[] data, final java.time.LocalDateTime time) throws IOException {
+        entry.setTimeLocal(time);
+        if (compressionLevel == 0 || entry.getName().endsWith("/")) {
+            // Stored entries need their size and checksum up front. The JVM can read them without inflating.
+            final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(data);
+            entry.setMethod(JarEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    // The time written into jar entries. Reproducible jars use SOURCE_DATE_EPOCH (see reproducible-builds.org) or a fixed date.
+    private static java.time.LocalDateTime jarEntryTime() {
+        if (!reproducibleBool)
+            return java.time.LocalDateTime.now();
+        final String epoch = System.getenv("SOURCE_DATE_EPOCH");
+        if (epoch != null && epoch.matches("[0-9]+"))
+            return java.time.LocalDateTime.ofEpochSecond(Math.max(Long.parseLong(epoch), 315964800L), 0, java.time.ZoneOffset.UTC); // not before 1980
+        return java.time.LocalDateTime.of(1980, 2, 1, 0, 0);
+    }
+
+    // An entry of a zip file as its central directory describes it, which is enough to copy its data without inflating it.
+    private static final class RawZipEntry {
+        final String name;
+        final byte[] rawName;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        RawZipEntry(final byte[] rawName, final int flags, final int method, final int dosTime, final long crc, final long compressedSize, final long size, final long localHeaderOffset) {
+            // Without the language encoding flag (bit 11) a name is in the old IBM PC code page, which only matters beyond ASCII.
+            boolean ascii = true;
+            for (final byte b : rawName)
+                ascii &= b >= 0;
+            this.name = new String(rawName, (flags & 0x800) != 0 || ascii ? StandardCharsets.UTF_8 : java.nio.charset.Charset.forName("IBM437"));
+            // Java reads the names of a jar as UTF-8, so that is how they get written into the executable.
+            this.rawName = (flags & 0x800) != 0 ? rawName : name.getBytes(StandardCharsets.UTF_8);
+            this.flags = flags | 0x800;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private static final int ZIP_LOCAL_HEADER   = 0x04034b50;
+    private static final int ZIP_CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP_END_HEADER     = 0x06054b50;
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of zip file.");
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static List<RawZipEntry> readCentralDirectory(final FileChannel channel) throws IOException {
+        assert channel != null;
+
+        // The end record is at the very end, only followed by a comment of at most 64 kb.
+        final long fileSize = channel.size();
+        final int tailSize = (int) Math.min(fileSize, 22 + 0xFFFF);
+        final ByteBuffer tail = ByteBuffer.allocate(tailSize).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, fileSize - tailSize);
+        int end = tailSize - 22;
+        while (end >= 0 && tail.getInt(end) != ZIP_END_HEADER)
+            end -= 1;
+        if (end < 0)
+            throw new IOException("Not a zip file.");
+        final int count = tail.getShort(end + 10) & 0xFFFF;
+        final long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        final long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL)
+            throw new IOException("Zip64 files are not supported.");
+
+        final ByteBuffer directory = ByteBuffer.allocate((int) directorySize).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, directory, directoryOffset);
+        final List<RawZipEntry> entries = new ArrayList<>(count);
+        int pos = 0;
+        for (int i = 0; i < count; ++i) {
+            if (directory.getInt(pos) != ZIP_CENTRAL_HEADER)
+                throw new IOException("Corrupt central directory.");
+            final byte[] rawName = new byte[directory.getShort(pos + 28) & 0xFFFF];
+            directory.position(pos + 46);
+            directory.get(rawName);
+            entries.add(new RawZipEntry(rawName, directory.getShort(pos + 8) & 0xFFFF, directory.getShort(pos + 10) & 0xFFFF, directory.getInt(pos + 12),
+                                        directory.getInt(pos + 16) & 0xFFFFFFFFL, directory.getInt(pos + 20) & 0xFFFFFFFFL, directory.getInt(pos + 24) & 0xFFFFFFFFL,
+                                        directory.getInt(pos + 42) & 0xFFFFFFFFL));
+            pos += 46 + rawName.length + (directory.getShort(pos + 30) & 0xFFFF) + (directory.getShort(pos + 32) & 0xFFFF);
+        }
+        return entries;
+    }
+
+    // Where the (still compressed) data of an entry starts.
+    private static long dataOffset(final FileChannel channel, final RawZipEntry entry) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(30).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, entry.localHeaderOffset);
+        if (header.getInt(0) != ZIP_LOCAL_HEADER)
+            throw new IOException("Corrupt local header of " + entry.name);
+        return entry.localHeaderOffset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    private static byte[] readZipEntry(final FileChannel channel, final RawZipEntry entry) throws IOException {
+        final ByteBuffer data = ByteBuffer.allocate((int) entry.compressedSize);
+        readFully(channel, data, dataOffset(channel, entry));
+        if (entry.method == java.util.zip.ZipEntry.STORED)
+            return data.array();
+
+        final java.util.zip.Inflater inflater = new java.util.zip.Inflater(true);
+        try {
+            inflater.setInput(data.array());
+            final byte[] result = new byte[(int) entry.size];
+            int length = 0;
+            while (length < result.length && !inflater.finished()) {
+                final int inflated = inflater.inflate(result, length, result.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Corrupt data of " + entry.name);
+                length += inflated;
+            }
+            return result;
+        } catch (final java.util.zip.DataFormatException ex) {
+            throw new IOException("Corrupt data of " + entry.name, ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // MS-DOS date and time as zip files store them.
+    private static int dosTime(final java.time.LocalDateTime time) {
+        if (time.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+             | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    // Writes a zip file whose entries are either copied as they are from another zip file or given as bytes.
+    private static final class RawZipWriter implements AutoCloseable {
+        private final FileChannel out;
+        private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream(4096);
+        private final ByteBuffer header = ByteBuffer.allocate(46).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        private int count = 0;
+
+        RawZipWriter(final File file) throws IOException {
+            out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        private void writeHeader() throws IOException {
+            header.flip();
+            while (header.hasRemaining())
+                out.write(header);
+            header.clear();
+        }
+
+        // Writes the local header, the caller has to write exactly 'compressedSize' bytes of data afterwards.
+        private void beginEntry(final byte[] rawName, final int flags, final int method, final int dosTime, final long crc, final long compressedSize, final long size) throws IOException {
+            final long offset = out.position();
+            if (++count > 0xFFFF || offset + compressedSize > 0xFFFFFFFFL)
+                throw new IOException("The executable would need zip64, which is not supported.");
+            // Sizes and checksum are known up front, so there is never a data descriptor after the data.
+            final int localFlags = flags & ~0x08;
+
+            header.putInt(ZIP_LOCAL_HEADER).putShort((short) 20).putShort((short) localFlags).putShort((short) method).putInt(dosTime)
+                  .putInt((int) crc).putInt((int) compressedSize).putInt((int) size).putShort((short) rawName.length).putShort((short) 0);
+            writeHeader();
+            out.write(ByteBuffer.wrap(rawName));
+
+            header.putInt(ZIP_CENTRAL_HEADER).putShort((short) 20).putShort((short) 20).putShort((short) localFlags).putShort((short) method).putInt(dosTime)
+                  .putInt((int) crc).putInt((int) compressedSize).putInt((int) size).putShort((short) rawName.length).putShort((short) 0)
+                  .putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) offset);
+            centralDirectory.write(header.array(), 0, header.position());
+            centralDirectory.write(rawName);
+            header.clear();
+        }
+
+        void copy(final FileChannel source, final RawZipEntry entry) throws IOException {
+            beginEntry(entry.rawName, entry.flags, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size);
+            long position = dataOffset(source, entry);
+            long remaining = entry.compressedSize;
+            while (remaining > 0) {
+                final long transferred = source.transferTo(position, remaining, out);
+                if (transferred <= 0)
+                    throw new IOException("Unexpected end of data of " + entry.name);
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+
+        void add(final String name, final byte[] data, final int dosTime) throws IOException {
+            final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(data);
+            if (compressionLevel == 0) {
+                beginEntry(name.getBytes(StandardCharsets.UTF_8), 0x800, java.util.zip.ZipEntry.STORED, dosTime, crc.getValue(), data.length, data.length);
+                out.write(ByteBuffer.wrap(data));
+                return;
+            }
+            final java.util.zip.Deflater deflater = new java.util.zip.Deflater(compressionLevel > 0 ? compressionLevel : java.util.zip.Deflater.DEFAULT_COMPRESSION, true);
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                final byte[] buffer = new byte[8192];
+                while (!deflater.finished())
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+            } finally {
+                deflater.end();
+            }
+            beginEntry(name.getBytes(StandardCharsets.UTF_8), 0x800, java.util.zip.ZipEntry.DEFLATED, dosTime, crc.getValue(), compressed.size(), data.length);
+            out.write(ByteBuffer.wrap(compressed.toByteArray()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                final long offset = out.position();
+                out.write(ByteBuffer.wrap(centralDirectory.toByteArray()));
+                header.putInt(ZIP_END_HEADER).putShort((short) 0).putShort((short) 0).putShort((short) count).putShort((short) count)
+                      .putInt(centralDirectory.size()).putInt((int) offset).putShort((short) 0);
+                writeHeader();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Entries of libraries which must not end up in the executable.
+    private static boolean isDroppedLibraryEntry(final String name) {
+        final String upper = name.toUpperCase(java.util.Locale.ROOT);
+        if (upper.equals("META-INF/MANIFEST.MF") || upper.equals("META-INF/INDEX.LIST"))
+            return true; // ours is the one that counts, and an index would list the wrong jar
+        if (name.equals("module-info.class") || (name.startsWith("META-INF/versions/") && name.endsWith("/module-info.class")))
+            return true; // the executable is not a module
+        if (upper.startsWith("META-INF/") && upper.indexOf('/', "META-INF/".length()) == -1) {
+            // Signatures of a library do not match the executable and would make the JVM reject it.
+            return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC") || upper.startsWith("META-INF/SIG-");
+        }
+        return false;
+    }
+
+    // Writes the entries of all jars into 'target'. For every name the first one wins, only the first jar keeps its manifest
+    // and signatures. Returns the number of entries, of merged service files and of skipped duplicates (the first few of
+    // those get added to 'duplicateNames').
+    private static int[] mergeJars(final File target, final List<File> sources, final List<String> duplicateNames) throws IOException {
+        assert target != null;
+        assert sources != null && !sources.isEmpty();
+
+        final List<FileChannel> channels = new ArrayList<>(sources.size());
+        int copied = 0;
+        int duplicates = 0;
+        final Map<String, Set<String>> services = new TreeMap<>();
+        try {
+            final List<List<RawZipEntry>> directories = new ArrayList<>(sources.size());
+            for (final File source : sources) {
+                final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                channels.add(channel);
+                try {
+                    directories.add(readCentralDirectory(channel));
+                } catch (final IOException ex) {
+                    throw new IOException(source + ": " + ex.getMessage(), ex);
+                }
+            }
+
+            // Service files of all jars get merged into one, so no implementation gets lost.
+            // Multi-release libraries only keep working if the executable is one as well.
+            boolean multiRelease = false;
+            for (int i = 0; i < sources.size(); ++i) {
+                for (final RawZipEntry entry : directories.get(i)) {
+                    if (entry.name.startsWith("META-INF/services/") && !entry.name.endsWith("/")) {
+                        final Set<String> providers = services.computeIfAbsent(entry.name, k -> new java.util.LinkedHashSet<>());
+                        for (String line : new String(readZipEntry(channels.get(i), entry), StandardCharsets.UTF_8).split("\r?\n")) {
+                            final int comment = line.indexOf('#');
+                            line = (comment == -1 ? line : line.substring(0, comment)).strip();
+                            if (!line.isEmpty())
+                                providers.add(line);
                         }
+                    } else if (i > 0 && entry.name.equalsIgnoreCase("META-INF/MANIFEST.MF")) {
+                        final Manifest mf = new Manifest(new ByteArrayInputStream(readZipEntry(channels.get(i), entry)));
+                        multiRelease |= "true".equalsIgnoreCase(mf.getMainAttributes().getValue("Multi-Release"));
                     }
-                } else { // we have libraries; need to specify classpath now
-                    if (compiler.equalsIgnoreCase("---")) {
-                        final File compilerExecutable = new File(compiler);
-                        if (!compilerExecutable.exists()) {
-                            buildFail("\t-> Specified compiler executable does not exist.");
-                            assert false;
+                }
+            }
+
+            final int now = dosTime(jarEntryTime());
+            final Set<String> written = new HashSet<>();
+            try (final RawZipWriter out = new RawZipWriter(target)) {
+                for (int i = 0; i < sources.size(); ++i) {
+                    for (final RawZipEntry entry : directories.get(i)) {
+                        if (services.containsKey(entry.name))
+                            continue;
+                        if (i > 0 && isDroppedLibraryEntry(entry.name))
+                            continue;
+                        if (!written.add(entry.name)) {
+                            if (!entry.name.endsWith("/")) { // the same package directory in two jars is fine
+                                duplicates += 1;
+                                if (duplicateNames.size() < 5)
+                                    duplicateNames.add(entry.name + " (" + sources.get(i).getName() + ")");
+                            }
+                            continue;
                         }
-                        result = execShellCommand(null, null, false, "javac", "-classpath", classpath.toString(), "@sources.txt", "-Xdiags:verbose", "-Xlint:deprecation", "-Xmaxerrs", "5", "-nowarn", debugFlag, "-d", "build/classes", "-encoding", encoding);
-                    } else {
-                        result = execShellCommand(null, null, false, compiler, "-classpath", classpath.toString(), "@sources.txt", "-Xdiags:verbose", "-Xlint:deprecation", "-Xmaxerrs", "5", "-nowarn", debugFlag, "-d", "build/classes", "-encoding", encoding);
+                        if (i == 0 && multiRelease && entry.name.equalsIgnoreCase("META-INF/MANIFEST.MF")) {
+                            final Manifest mf = new Manifest(new ByteArrayInputStream(readZipEntry(channels.get(i), entry)));
+                            mf.getMainAttributes().putValue("Multi-Release", "true");
+                            final ByteArrayOutputStream mfData = new ByteArrayOutputStream(256);
+                            mf.write(mfData);
+                            out.add(entry.name, mfData.toByteArray(), now);
+                        } else {
+                            out.copy(channels.get(i), entry);
+                        }
+                        copied += 1;
                     }
                 }
+                for (final Map.Entry<String, Set<String>> service : services.entrySet()) {
+                    final StringBuilder content = new StringBuilder(128);
+                    for (final String provider : service.getValue())
+                        content.append(provider).append('\n');
+                    out.add(service.getKey(), content.toString().getBytes(StandardCharsets.UTF_8), now);
+                }
             }
-            assert result != null;
+        } catch (final IOException ex) {
+            target.delete();
+            throw ex;
+        } finally {
+            for (final FileChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (final IOException ex) {
+                    // only read from it
+                }
+            }
+        }
 
-            if (((int) result[1]) != 0) {
-                stdout("\t-> COMPILATION ERROR");
-                stdout(null);
-                System.out.println("############################");
-                System.out.println("ERRORS");
-                System.out.println();
-                System.out.println(result[0]);
-                System.out.println("############################");
-                System.out.println("BUILD FAILED");
 
-                // TODO(nschultz): We might still have these files. However this soulution is rather hacky.
-                new File("sources.txt").delete();
+        long bytesRead = 0;
+        for (final File source : sources)
+            bytesRead += source.length();
+        traceRead(bytesRead);
+        traceWritten(target.length());
+        return new int[] {copied + services.size(), services.size(), duplicates};
+    }
 
-                if (log.equalsIgnoreCase("yes"))
-                    log(-1);
+    private static void mergeLibraries() {
+        stdout("> Merging libraries into the executable...");
 
-                System.exit(-1);
-            } else {
-                try {
-                    final File[] classFiles = listAllFiles(new File("build/classes"));
-                    for (final File file : classFiles) {
-                        if (!file.getName().endsWith(".class"))
-                            continue;
+        final List<File> jars = libraryJars();
+        if (jars.isEmpty()) {
+            stdout("\t-> Your program does not use any libraries.");
+            return;
+        }
 
-                        if (file.getName().contains("$"))
-                            numberOfAnonymousClassFiles += 1;
-                        else
-                            numberOfClassFiles += 1;
-                    }
-                } catch (final IOException ex) {
-                    buildFail("\t-> Failed to count class files.");
-                    assert false;
-                }
+        // Our own entries come first, then the libraries in alphabetical order. For every name the first one wins.
+        final List<File> sources = new ArrayList<>(jars.size() + 1);
+        final File program = new File("build/" + programName);
+        sources.add(program);
+        sources.addAll(jars);
+
+        final File merged = new File("build/" + programName + ".fat");
+        final List<String> duplicateNames = new ArrayList<>();
+        int[] counts = null;
+        try {
+            counts = mergeJars(merged, sources, duplicateNames);
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to merge libraries into the executable: " + ex.getMessage());
+            assert false;
+        }
+        assert counts != null;
+
+        try {
+            Files.move(merged.toPath(), program.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to replace the executable with the merged one.");
+            assert false;
+        }
+
+        stdout(String.format("\t-> Merged %d %s into the executable (%d entries, %d merged service files).", jars.size(), jars.size() == 1 ? "library" : "libraries",
+                             counts[0], counts[1]));
+        if (counts[2] > 0) {
+            stdout(String.format("\t-> Skipped %d duplicate entries, the first one wins (own classes, then libraries in alphabetical order):", counts[2]));
+            for (final String name : duplicateNames)
+                stdout("\t\t" + name);
+            if (counts[2] > duplicateNames.size())
+                stdout("\t\t...");
+        }
+        buildStats.put("jar_bytes", program.length());
+        stdout(String.format("\t-> Size of executable is %.3f %s\n", program.length() / 1024.0f, "kb."));
+    }
+
+    private static void writeToFile(String file, final String data) {
+        writeToFile(file, data, false);
+    }
+
+    private static void writeToFile(String file, final String data, final boolean append) {
+        assert file != null;
+        assert data != null;
+
+        // Remove illegal characters, which can occur when having a file which uses generics
+        file = file.replace("<", "").replace(">", "");
+
+        try (final OutputStream out = new FileOutputStream(new File(file), append)) {
+            final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            out.flush();
+            traceWritten(bytes.length);
+        } catch (final IOException ex) {
+            stdout(String.format("\t-> Failed to write file '%s'\n", file));
+        }
+    }
+
+    private static void readFileIntoMemory(final StringBuilder buffer, final File file) {
+        assert buffer != null;
+        assert file != null;
+
+        // Decode the whole file at once, chunks could split a multi byte character.
+        try {
+            buffer.append(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } catch (final IOException ex) {
+            stdout(String.format("Failed to read file %s", file.getName()));
+        }
+    }
+
+    // Numbers describing the current build (file counts, sizes, ...), which end up in the build history.
+    private static final Map<String, Long> buildStats = new java.util.concurrent.ConcurrentHashMap<>();
+    private static final File HISTORY_FILE = new File(".jbp/history.jsonl");
+
+    // Appends one line of JSON describing this build to the history, which '--stats' reads.
+    private static void recordHistory(final boolean success, final long elapsedMillis) {
+        final Map<String, Object> record = new LinkedHashMap<>();
+        record.put("time", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").format(new Date()));
+        record.put("success", success);
+        record.put("mode", mode == null ? "debug" : mode.toLowerCase());
+        record.put("incremental", incrementalBool);
+        record.put("in_memory", inMemoryBool);
+        record.put("java", System.getProperty("java.version"));
+        record.put("total_ms", elapsedMillis);
+        record.put("peak_heap_bytes", peakHeapBytes());
+        for (final Span span : spans) {
+            if (span.category.equals("phase"))
+                record.put("phase_ms." + span.name, span.wallNanos / 1000000);
+        }
+        record.putAll(new TreeMap<>(buildStats));
+
+        final StringBuilder sb = new StringBuilder(512).append('{');
+        for (final Map.Entry<String, Object> entry : record.entrySet()) {
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append(jsonString(entry.getKey())).append(':');
+            final Object value = entry.getValue();
+            sb.append(value instanceof String ? jsonString((String) value) : String.valueOf(value));
+        }
+        sb.append("}\n");
+
+        HISTORY_FILE.getParentFile().mkdirs();
+        writeToFile(HISTORY_FILE.getPath(), sb.toString(), true);
+    }
+
+    // Reads a flat JSON object (strings, numbers and booleans) like the ones recordHistory() writes.
+    private static Map<String, String> parseHistoryRecord(final String line) {
+        final Map<String, String> result = new LinkedHashMap<>();
+        int i = line.indexOf('{') + 1;
+        if (i == 0)
+            return result;
+        while (i < line.length()) {
+            while (i < line.length() && (line.charAt(i) == ',' || Character.isWhitespace(line.charAt(i))))
+                i += 1;
+            if (i >= line.length() || line.charAt(i) == '}')
+                break;
+            final StringBuilder key = new StringBuilder();
+            i = parseJsonString(line, i, key);
+            while (line.charAt(i) != ':')
+                i += 1;
+            i += 1;
+            while (Character.isWhitespace(line.charAt(i)))
+                i += 1;
+            if (line.charAt(i) == '"') {
+                final StringBuilder value = new StringBuilder();
+                i = parseJsonString(line, i, value);
+                result.put(key.toString(), value.toString());
+            } else {
+                final int start = i;
+                while (i < line.length() && line.charAt(i) != ',' && line.charAt(i) != '}')
+                    i += 1;
+                result.put(key.toString(), line.substring(start, i).strip());
+            }
+        }
+        return result;
+    }
+
+    // Parses the string literal starting at 'start' into 'out' and returns the index after it.
+    private static int parseJsonString(final String str, final int start, final StringBuilder out) {
+        assert str.charAt(start) == '"';
+        int i = start + 1;
+        while (str.charAt(i) != '"') {
+            char c = str.charAt(i++);
+            if (c == '\\') {
+                c = str.charAt(i++);
+                switch (c) {
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case 'r': c = '\r'; break;
+                    case 'u': c = (char) Integer.parseInt(str.substring(i, i + 4), 16); i += 4; break;
+                    default: break; // '"', '\\' and '/' stand for themselves
+                }
+            }
+            out.append(c);
+        }
+        return i + 1;
+    }
+
+    private static double percentile(final double[] sorted, final double p) {
+        assert sorted.length > 0;
+        final double index = p * (sorted.length - 1);
+        final int lower = (int) Math.floor(index);
+        final int upper = (int) Math.ceil(index);
+        return sorted[lower] + (sorted[upper] - sorted[lower]) * (index - lower);
+    }
+
+    // How many previous successful builds a build gets compared with.
+    private static final int STATS_BASELINE = 20;
+
+    // A build is a regression if it is worse than the median of its baseline by more than 3 (scaled) median absolute
+    // deviations and by at least 10%. Both together keep noisy metrics like timings from being flagged all the time.
+    private static boolean isRegression(final double value, final double[] baseline) {
+        if (baseline.length < 5)
+            return false; // not enough data to tell
+        final double[] sorted = baseline.clone();
+        Arrays.sort(sorted);
+        final double median = percentile(sorted, 0.5);
+        final double[] deviations = new double[sorted.length];
+        for (int i = 0; i < sorted.length; ++i)
+            deviations[i] = Math.abs(sorted[i] - median);
+        Arrays.sort(deviations);
+        final double mad = 1.4826 * percentile(deviations, 0.5);
+        return value > median + 3 * mad && value > median * 1.10;
+    }
+
+    private static void printStats() {
+        if (!HISTORY_FILE.exists()) {
+            System.out.println("There is no build history yet. Set 'Log = Yes' in your jbp.config to record one.");
+            return;
+        }
+
+        final List<Map<String, String>> builds = new ArrayList<>();
+        int failed = 0;
+        try {
+            for (final String line : Files.readAllLines(HISTORY_FILE.toPath(), StandardCharsets.UTF_8)) {
+                if (line.isBlank())
+                    continue;
+                try {
+                    final Map<String, String> record = parseHistoryRecord(line);
+                    if ("true".equals(record.get("success")))
+                        builds.add(record);
+                    else
+                        failed += 1;
+                } catch (final RuntimeException ex) {
+                    // skip damaged lines, e.g. from a build which got killed while writing
+                }
+            }
+        } catch (final IOException ex) {
+            System.out.println("Failed to read the build history: " + ex.getMessage());
+            return;
+        }
+        if (builds.isEmpty()) {
+            System.out.printf("The build history contains no successful builds (%d failed).\n", failed);
+            return;
+        }
+
+        final Set<String> metrics = new TreeSet<>();
+        for (final Map<String, String> build : builds) {
+            for (final Map.Entry<String, String> entry : build.entrySet()) {
+                if (entry.getKey().equals("total_ms") || entry.getKey().startsWith("phase_ms.") || entry.getKey().endsWith("_bytes") || entry.getKey().endsWith("_files")
+                    || entry.getKey().equals("loc") || entry.getKey().startsWith("bytecode_"))
+                    metrics.add(entry.getKey());
+            }
+        }
+
+        System.out.printf("%d successful and %d failed builds, from %s to %s.\n", builds.size(), failed, builds.get(0).get("time"), builds.get(builds.size() - 1).get("time"));
+        System.out.println();
+        System.out.println(String.format("%-28s %12s %12s %12s %12s %12s %12s  %s", "METRIC", "LAST", "MEDIAN", "P90", "MIN", "MAX", "TREND", "STATUS"));
+        final Map<String, List<String>> regressions = new TreeMap<>();
+        for (final String metric : metrics) {
+            final List<Double> values = new ArrayList<>();
+            final List<String> times = new ArrayList<>();
+            for (final Map<String, String> build : builds) {
+                final String value = build.get(metric);
+                if (value == null)
+                    continue;
+                try {
+                    values.add(Double.parseDouble(value));
+                    times.add(build.get("time"));
+                } catch (final NumberFormatException ex) {
+                    // not a number, ignore
+                }
+            }
+            if (values.isEmpty())
+                continue;
+
+            final double[] all = values.stream().mapToDouble(Double::doubleValue).toArray();
+            final double[] sorted = all.clone();
+            Arrays.sort(sorted);
+            final double last = all[all.length - 1];
+
+            // Trend compares the mean of the last 5 builds with the 5 before them.
+            String trend = "";
+            if (all.length >= 10) {
+                final double recent = Arrays.stream(all, all.length - 5, all.length).average().orElse(0);
+                final double before = Arrays.stream(all, all.length - 10, all.length - 5).average().orElse(0);
+                if (before > 0)
+                    trend = String.format(java.util.Locale.ROOT, "%+.1f%%", (recent - before) / before * 100);
+            }
+
+            for (int i = 1; i < all.length; ++i) {
+                final double[] baseline = Arrays.copyOfRange(all, Math.max(0, i - STATS_BASELINE), i);
+                if (isRegression(all[i], baseline))
+                    regressions.computeIfAbsent(times.get(i), k -> new ArrayList<>()).add(metric);
+            }
+            final boolean lastRegressed = isRegression(last, Arrays.copyOfRange(all, Math.max(0, all.length - 1 - STATS_BASELINE), all.length - 1));
+            System.out.println(String.format(java.util.Locale.ROOT, "%-28s %12.0f %12.0f %12.0f %12.0f %12.0f %12s  %s", metric, last, percentile(sorted, 0.5), percentile(sorted, 0.9),
+                                             sorted[0], sorted[sorted.length - 1], trend, lastRegressed ? "REGRESSION" : "ok"));
+        }
+
+        System.out.println();
+        if (regressions.isEmpty()) {
+            System.out.printf("No build was slower or larger than its last %d builds.\n", STATS_BASELINE);
+        } else {
+            System.out.printf("Builds which were slower or larger than their last %d builds:\n", STATS_BASELINE);
+            for (final Map.Entry<String, List<String>> regression : regressions.entrySet())
+                System.out.println("\t" + regression.getKey() + " : " + String.join(", ", regression.getValue()));
+        }
+    }
+
+    private static void log(final double seconds) {
+        final File logFile = new File("jbp.log");
+        if (!logFile.exists()) {
+            try {
+                if (!logFile.createNewFile()) {
+                    stdout("Failed to create jbp.log file.");
+                    return;
+                }
+            } catch (final IOException ex) {
+                stdout("Failed to create jbp.log file.");
+                return;
+            }
+        }
+
+        final SimpleDateFormat parser = new SimpleDateFormat("dd.MM.yyyy-HH:mm:ss");
+        final String date = parser.format(new Date());
+        if (seconds == -1) { // The build has failed if we get '-1'.
+            writeToFile(logFile.getAbsolutePath(), date + "-> BUILD FAILED\n", true);
+        } else {
+            writeToFile(logFile.getAbsolutePath(), date + "-> BUILD SUCCESSFULL TOOK " + seconds + " SECONDS\n", true);
+        }
+        recordHistory(seconds != -1, (System.nanoTime() - startNanoTime) / 1000000);
+    }
+
+    private static void deleteSourcesFiles() {
+        final File sources = new File("sources.txt");
+        if (sources.exists()) {
+            if (!sources.delete()) {
+                System.out.println();
+                stdout("Failed to delete sources.txt file.");
+            }
+        }
+    }
+
+    private static final int SYNC_UNCHANGED = 0;
+    private static final int SYNC_LINKED    = 1;
+    private static final int SYNC_COPIED    = 2;
+
+    // Makes 'target' a copy of 'source' unless it already is one (same size and modification time, which we carry over when copying).
+    // With 'link' the target becomes a hard link if the file system allows it, which costs no copying at all.
+    private static int syncFile(final Path source, final Path target, final boolean link) throws IOException {
+        final BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+        if (Files.exists(target)) {
+            final BasicFileAttributes targetAttributes = Files.readAttributes(target, BasicFileAttributes.class);
+            if (targetAttributes.isRegularFile() && targetAttributes.size() == sourceAttributes.size() && targetAttributes.lastModifiedTime().equals(sourceAttributes.lastModifiedTime()))
+                return SYNC_UNCHANGED;
+            Files.delete(target);
+        }
+        Files.createDirectories(target.getParent());
+
+        if (link) {
+            try {
+                Files.createLink(target, source);
+                return SYNC_LINKED;
+            } catch (final IOException | UnsupportedOperationException ex) {
+                // e.g. different file systems, copy it instead
+            }
+        }
+
+        try (final Span span = span("io", "copy");
+             final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             final FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final long size = in.size();
+            for (long position = 0; position < size; )
+                position += in.transferTo(position, size - position, out);
+            span.bytesRead.addAndGet(size);
+            span.bytesWritten.addAndGet(size);
+        }
+        Files.setLastModifiedTime(target, sourceAttributes.lastModifiedTime());
+        return SYNC_COPIED;
+    }
+
+    // Does not depend on the compiled program, so it runs alongside compilation.
+    private static void copyReleaseFiles() {
+        stdout("> Copying libraries and resources...");
+        final Path release = Paths.get("build", "release");
+        try {
+            Files.createDirectories(release);
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to create release directory.");
+            assert false;
+        }
+
+        // Everything the release should contain (besides the executable): target -> source
+        final Map<Path, Path> manifest = new TreeMap<>();
+        int numberOfLibraries = 0;
+        for (final File jar : libraryJars()) {
+            if (packaging.equalsIgnoreCase("thin"))
+                manifest.put(release.resolve("libs").resolve(jar.getName()), jar.toPath());
+            numberOfLibraries += 1;
+        }
+        final File res = new File("res");
+        int numberOfResources = 0;
+        if (res.isDirectory()) {
+            try {
+                for (final File resFile : listAllFiles(res)) {
+                    if (!resFile.isFile())
+                        continue;
+                    manifest.put(release.resolve("res").resolve(res.toPath().relativize(resFile.toPath())), resFile.toPath());
+                    numberOfResources += 1;
+                }
+            } catch (final IOException ex) {
+                buildFail("\t-> Failed to list your resources.");
+                assert false;
+            }
+        }
+
+        // Remove whatever is left over from previous builds, like deleted resources or renamed libraries. The rest of the
+        // release has been cleaned already.
+        final Path releaseLibs = release.resolve("libs");
+        final Path releaseRes = release.resolve("res");
+        int numberOfRemovedFiles = 0;
+        try {
+            final File[] existing = listAllFiles(release.toFile());
+            for (int i = existing.length - 1; i > 0; --i) { // reversed, so directories come after their content; 0 is the release itself
+                final Path path = existing[i].toPath();
+                if (Files.isDirectory(path)) {
+                    try (final Stream<Path> children = Files.list(path)) {
+                        if (children.findAny().isEmpty())
+                            Files.delete(path);
+                    }
+                } else if (!manifest.containsKey(path) && (path.startsWith(releaseLibs) || path.startsWith(releaseRes))) {
+                    Files.delete(path);
+                    numberOfRemovedFiles += 1;
+                }
+            }
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to remove old files from the release.");
+            assert false;
+        }
+
+        // Libraries are never written to, so they can be hard links. Resources might get changed by the program itself
+        // at runtime, which must not reach through to the project's 'res' directory.
+        final int[] results;
+        try {
+            results = manifest.entrySet().parallelStream().mapToInt(entry -> {
+                try {
+                    return syncFile(entry.getValue(), entry.getKey(), entry.getKey().startsWith(releaseLibs));
+                } catch (final IOException ex) {
+                    throw new java.io.UncheckedIOException(entry.getValue().toString(), ex);
+                }
+            }).toArray();
+        } catch (final java.io.UncheckedIOException ex) {
+            buildFail("\t-> Failed to copy " + ex.getMessage() + " to the release.");
+            assert false;
+            return;
+        }
+
+        int linked = 0;
+        int copied = 0;
+        for (final int result : results) {
+            if (result == SYNC_LINKED)
+                linked += 1;
+            else if (result == SYNC_COPIED)
+                copied += 1;
+        }
+        long bytes = 0;
+        long copiedBytes = 0;
+        int i = 0;
+        for (final Map.Entry<Path, Path> entry : manifest.entrySet()) {
+            final long size = entry.getValue().toFile().length();
+            bytes += size;
+            if (results[i++] == SYNC_COPIED)
+                copiedBytes += size;
+        }
+        traceRead(copiedBytes);
+        traceWritten(copiedBytes);
+        releaseFilesBytes = bytes;
+
+        if (numberOfLibraries == 0)
+            stdout("\t-> Your program does not use any libraries.");
+        else if (numberOfLibraries == 1)
+            stdout("\t-> Program uses 1 library.");
+        else
+            stdout("\t-> Program uses " + numberOfLibraries + " libraries.");
+        if (numberOfResources == 0)
+            stdout("\t-> Program does not use any resource files.");
+        else
+            stdout("\t-> Program uses " + numberOfResources + " resource files.");
+        if (linked + copied + numberOfRemovedFiles == 0 && !manifest.isEmpty())
+            stdout("\t-> Release is already up to date.");
+        else if (!manifest.isEmpty() || numberOfRemovedFiles > 0)
+            stdout(String.format("\t-> Linked %d, copied %d (%.3f kb) and removed %d files, %d were up to date.\n", linked, copied, copiedBytes / 1024.0f, numberOfRemovedFiles,
+                                 manifest.size() - linked - copied));
+    }
+
+    private static final long TRAINING_RUN_SECONDS = 60;
+
+    // Runs a program without any input and ignores its output. Returns how long it took in nanoseconds (-1 if it had to be stopped),
+    // its exit code and its peak resident set size in bytes (-1 where /proc is not available).
+    private static long[] runProgram(final File cwd, final long timeoutSeconds, final String...args) throws IOException {
+        assert args != null;
+
+        final Span span = span("process", new File(args[0]).getName());
+        try {
+            final ProcessBuilder builder = new ProcessBuilder(args);
+            builder.directory(cwd);
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            builder.redirectErrorStream(true);
+            final long start = System.nanoTime();
+            final Process process = builder.start();
+            process.getOutputStream().close(); // reading from System.in ends right away
+            // The high water mark only grows, so the last value read before the process is gone is its peak.
+            final Path status = Paths.get("/proc", Long.toString(process.pid()), "status");
+            long peakRss = -1;
+            final long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            try {
+                while (!process.waitFor(peakRss == -1 && !Files.exists(status) ? 50 : 5, TimeUnit.MILLISECONDS)) {
+                    peakRss = Math.max(peakRss, readPeakRss(status));
+                    if (System.nanoTime() > deadline) {
+                        // The JVM still writes the archive when it gets terminated.
+                        process.destroy();
+                        if (!process.waitFor(10, TimeUnit.SECONDS))
+                            process.destroyForcibly();
+                        return new long[] {-1, -1, peakRss};
+                    }
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+                return new long[] {-1, -1, peakRss};
+            }
+            return new long[] {System.nanoTime() - start, process.exitValue(), peakRss};
+        } finally {
+            span.close();
+        }
+    }
+
+    private static long readPeakRss(final Path status) {
+        try {
+            for (final String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").strip()) * 1024;
+            }
+        } catch (final IOException | NumberFormatException ex) {
+            // gone already, or not linux
+        }
+        return -1;
+    }
+
+    // The java executable the program runs with, relative to the release directory if it is the linked runtime image.
+    private static String programJava(final boolean relative) {
+        if (runtime.equalsIgnoreCase("jlink")) {
+            final String java = "runtime" + File.separator + "bin" + File.separator + "java";
+            return relative ? java : new File("build/release", java).getAbsolutePath();
+        }
+        return jvm.equalsIgnoreCase("---") ? "java" : jvm;
+    }
+
+    // Writes run.sh and run.bat into the release, which start the program from there.
+    private static void writeLaunchers(final String options) {
+        final String java = programJava(true);
+        final String jvmOptions = options.isEmpty() ? "" : " " + options;
+        writeToFile("build/release/run.sh", "#!/bin/sh\ncd \"$(dirname \"$0\")\" && exec \"" + java.replace('\\', '/') + "\"" + jvmOptions
+                    + " -jar " + programName + " \"$@\"\n");
+        new File("build/release/run.sh").setExecutable(true);
+        writeToFile("build/release/run.bat", "@echo off\r\npushd \"%~dp0\"\r\n\"" + java.replace('/', '\\') + "\"" + jvmOptions
+                    + " -jar " + programName + " %*\r\npopd\r\n");
+    }
+
+    // The feature version of the JVM the program runs with (e.g. 11), or -1 if it cannot be told.
+    private static int javaVersionOf(final String executable) {
+        try {
+            final String output = (String) execShellCommand(null, false, executable, "-version")[0];
+            final java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("version \"(1\\.)?([0-9]+)").matcher(output);
+            return matcher.find() ? Integer.parseInt(matcher.group(2)) : -1;
+        } catch (final IOException ex) {
+            return -1;
+        }
+    }
+
+    private static void createClassDataArchive() {
+        stdout("> Creating class data sharing archive...");
+
+        if (entryPoint.equals("--NoMainFound--")) {
+            stdout("\t-> Skipped, your program has no entry point.");
+            return;
+        }
+        final String javaExecutable = programJava(false);
+        if (!runtime.equalsIgnoreCase("jlink") && !jvm.equalsIgnoreCase("---") && !new File(jvm).exists()) {
+            buildFail("\t-> Specified jvm executable does not exist.");
+            assert false;
+        }
+        final int version = javaVersionOf(javaExecutable);
+        if (version < 11) {
+            stdout("\t-> Skipped, the JVM is older than Java 11 (or could not be run).");
+            return;
+        }
+
+        final File release = new File("build/release");
+        final String baseName = programName.endsWith(".jar") ? programName.substring(0, programName.length() - ".jar".length()) : programName;
+        final String archive = baseName + ".jsa";
+        final File archiveFile = new File(release, archive);
+        try {
+            // The training run is just a normal run of the program, the JVM remembers which classes got loaded.
+            final long[] training;
+            if (version >= 13) {
+                training = runProgram(release, TRAINING_RUN_SECONDS, javaExecutable, "-XX:ArchiveClassesAtExit=" + archive, "-jar", programName);
+            } else {
+                // Java 11 and 12 can only dump a static archive from a class list.
+                final File classList = new File("build/classes.lst");
+                training = runProgram(release, TRAINING_RUN_SECONDS, javaExecutable, "-XX:DumpLoadedClassList=" + classList.getAbsolutePath(), "-jar", programName);
+                if (classList.isFile())
+                    runProgram(release, TRAINING_RUN_SECONDS, javaExecutable, "-Xshare:dump", "-XX:SharedClassListFile=" + classList.getAbsolutePath(),
+                               "-XX:SharedArchiveFile=" + archive, "-cp", programName);
+                classList.delete();
+            }
+            if (training[0] < 0)
+                stdout(String.format("\t-> Your program was stopped after %d seconds of training.", TRAINING_RUN_SECONDS));
+            else if (training[1] != 0)
+                stdout(String.format("\t-> Your program exited with %d during training, the archive might miss some classes.", training[1]));
+            if (!archiveFile.isFile()) {
+                buildFail("\t-> The JVM did not write an archive.");
+                assert false;
+            }
+            traceWritten(archiveFile.length());
+            stdout(String.format("\t-> Wrote %s (%.3f kb).", archive, archiveFile.length() / 1024.0f));
+
+            // The archive only gets used with the exact same jar path, so the launchers run from the release directory.
+            writeLaunchers("-XX:SharedArchiveFile=" + archive);
+            stdout("\t-> Start your program with run.sh or run.bat to use it.");
+
+            if (training[0] < 0)
+                return; // it does not exit on its own, there is no startup time to compare
+            // Alternate between both, so neither profits from a warmer disk cache.
+            final long[] without = new long[3];
+            final long[] with = new long[3];
+            for (int i = 0; i < 3; ++i) {
+                without[i] = runProgram(release, TRAINING_RUN_SECONDS, javaExecutable, "-jar", programName)[0];
+                with[i] = runProgram(release, TRAINING_RUN_SECONDS, javaExecutable, "-XX:SharedArchiveFile=" + archive, "-jar", programName)[0];
+            }
+            Arrays.sort(without);
+            Arrays.sort(with);
+            if (without[0] < 0 || with[0] < 0)
+                return;
+            buildStats.put("cds_startup_ms", with[1] / 1000000);
+            buildStats.put("startup_ms", without[1] / 1000000);
+            stdout(String.format("\t-> Run time of your program: %d ms without and %d ms with the archive (median of 3).\n",
+                                 without[1] / 1000000, with[1] / 1000000));
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to run your program: " + ex.getMessage());
+            assert false;
+        }
+    }
+
+    // What the runtime image in the release got linked from, so it only gets linked again when that changes.
+    private static final File RUNTIME_STATE = new File(".jbp/runtime");
+    private static final String[] JLINK_OPTIONS = {"--strip-debug", "--no-header-files", "--no-man-pages"};
+
+    // Java 21 deprecated the numbered compression levels of jlink (and warns about them) in favour of zip levels.
+    private static String jlinkCompression() {
+        final List<String> output = new ArrayList<>();
+        try {
+            runTool("jlink", jlink, output::add, "--version");
+        } catch (final IOException ex) {
+            // linking will tell what is wrong
+        }
+        final java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("^([0-9]+)").matcher(output.isEmpty() ? "" : output.get(0).strip());
+        return matcher.find() && Integer.parseInt(matcher.group(1)) >= 21 ? "--compress=zip-6" : "--compress=2";
+    }
+
+    private static long directorySize(final Path dir) throws IOException {
+        try (final Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static void createRuntimeImage() {
+        stdout("> Linking a minimal runtime image...");
+
+        if (!jdeps.equalsIgnoreCase("---") && !new File(jdeps).exists()) {
+            buildFail("\t-> Specified jdeps executable does not exist.");
+            assert false;
+        }
+        if (!jlink.equalsIgnoreCase("---") && !new File(jlink).exists()) {
+            buildFail("\t-> Specified jlink executable does not exist.");
+            assert false;
+        }
+
+        // Which modules of the JDK the program and its libraries need.
+        final List<String> args = new ArrayList<>(8);
+        args.add("--print-module-deps");
+        args.add("--ignore-missing-deps");
+        args.add("-q");
+        args.add("--multi-release");
+        args.add(jdeps.equalsIgnoreCase("---") ? Integer.toString(Runtime.version().feature()) : "base");
+        args.add("build/release/" + programName);
+        if (packaging.equalsIgnoreCase("thin")) {
+            for (final File lib : libraryJars())
+                args.add(lib.getPath());
+        }
+        final List<String> output = new ArrayList<>();
+        try {
+            if (runTool("jdeps", jdeps, output::add, args.toArray(new String[0])) != 0) {
+                output.forEach(System.out::println);
+                buildFail("\t-> jdeps failed to find the modules your program needs.");
+                assert false;
+            }
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to run jdeps.");
+            assert false;
+        }
+        String modules = "";
+        for (final String line : output) {
+            if (!line.isBlank())
+                modules = line.strip(); // the list is the last thing jdeps prints
+        }
+        if (!modules.matches("[\\w.]+(,[\\w.]+)*")) {
+            output.forEach(System.out::println);
+            buildFail("\t-> jdeps failed to find the modules your program needs.");
+            assert false;
+        }
+        stdout("\t-> Your program needs " + modules.replace(",", ", ") + ".");
+
+        final Path image = Paths.get("build", "release", "runtime");
+        final List<String> options = new ArrayList<>(Arrays.asList(JLINK_OPTIONS));
+        options.add(jlinkCompression());
+        final String state = (jlink.equalsIgnoreCase("---") ? System.getProperty("java.home") : jlink + " " + new File(jlink).lastModified())
+                           + "\n" + modules + "\n" + String.join(" ", options) + "\n";
+        String previousState = null;
+        try {
+            previousState = RUNTIME_STATE.isFile() ? new String(Files.readAllBytes(RUNTIME_STATE.toPath()), StandardCharsets.UTF_8) : null;
+        } catch (final IOException ex) {
+            // link it again then
+        }
+        final File imageJava = new File(programJava(false));
+        if (state.equals(previousState) && (imageJava.isFile() || new File(imageJava.getPath() + ".exe").isFile())) {
+            stdout("\t-> Runtime image is up to date.");
+        } else {
+            try {
+                RUNTIME_STATE.delete();
+                if (Files.exists(image))
+                    deleteDirectory(image.toFile()); // jlink refuses to write into an existing directory
+                final List<String> jlinkArgs = new ArrayList<>(options);
+                jlinkArgs.add("--add-modules");
+                jlinkArgs.add(modules);
+                jlinkArgs.add("--output");
+                jlinkArgs.add(image.toString());
+                output.clear();
+                if (runTool("jlink", jlink, output::add, jlinkArgs.toArray(new String[0])) != 0) {
+                    output.forEach(System.out::println);
+                    buildFail("\t-> Failed to link the runtime image.");
+                    assert false;
+                }
+                // Like the full JDK the image gets a default class data sharing archive, otherwise it would start slower.
+                execShellCommand(null, false, imageJava.getPath(), "-Xshare:dump");
+                Files.createDirectories(RUNTIME_STATE.getParentFile().toPath());
+                Files.write(RUNTIME_STATE.toPath(), state.getBytes(StandardCharsets.UTF_8));
+            } catch (final IOException ex) {
+                buildFail("\t-> Failed to link the runtime image: " + ex.getMessage());
+                assert false;
+            }
+        }
+
+        long imageBytes = 0;
+        try {
+            imageBytes = directorySize(image);
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to read the size of the runtime image.");
+            assert false;
+        }
+        buildStats.put("runtime_bytes", imageBytes);
+        stdout(String.format("\t-> Size of the runtime image is %.3f mb.", imageBytes / 1024.0f / 1024.0f));
+        writeLaunchers("");
+        stdout("\t-> Start your program with run.sh or run.bat to use it.");
+
+        if (entryPoint.equals("--NoMainFound--"))
+            return;
+        // Alternate between both, so neither profits from a warmer disk cache.
+        final String fullJava = jvm.equalsIgnoreCase("---") ? "java" : jvm;
+        final long[][] full = new long[3][];
+        final long[][] linked = new long[3][];
+        try {
+            for (int i = 0; i < 3; ++i) {
+                full[i] = runProgram(new File("build/release"), TRAINING_RUN_SECONDS, fullJava, "-jar", programName);
+                linked[i] = runProgram(new File("build/release"), TRAINING_RUN_SECONDS, imageJava.getPath(), "-jar", programName);
+            }
+        } catch (final IOException ex) {
+            stdout("\t-> Failed to run your program: " + ex.getMessage());
+            return;
+        }
+        final long[] fullTimes = new long[3];
+        final long[] linkedTimes = new long[3];
+        long fullRss = -1;
+        long linkedRss = -1;
+        for (int i = 0; i < 3; ++i) {
+            fullTimes[i] = full[i][0];
+            linkedTimes[i] = linked[i][0];
+            fullRss = Math.max(fullRss, full[i][2]);
+            linkedRss = Math.max(linkedRss, linked[i][2]);
+        }
+        Arrays.sort(fullTimes);
+        Arrays.sort(linkedTimes);
+        if (fullTimes[0] < 0 || linkedTimes[0] < 0) {
+            stdout(String.format("\t-> Your program did not exit within %d seconds, so it was not measured.", TRAINING_RUN_SECONDS));
+            return;
+        }
+        final boolean rss = fullRss > 0 && linkedRss > 0;
+        stdout(String.format("\t-> Run time of your program: %d ms with the full JDK and %d ms with the runtime image (median of 3).%s",
+                             fullTimes[1] / 1000000, linkedTimes[1] / 1000000, rss ? "" : "\n"));
+        if (rss)
+            stdout(String.format("\t-> Peak memory (RSS) of your program: %.1f mb with the full JDK and %.1f mb with the runtime image.\n",
+                                 fullRss / 1024.0f / 1024.0f, linkedRss / 1024.0f / 1024.0f));
+    }
+
+    private static final int PROFILE_TOP = 10;
+
+    // The frame a profile event is attributed to: the topmost one in the program itself, otherwise the topmost one.
+    private static jdk.jfr.consumer.RecordedFrame attributedFrame(final jdk.jfr.consumer.RecordedStackTrace stackTrace, final boolean ownCodeOnly) {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty())
+            return null;
+        for (final jdk.jfr.consumer.RecordedFrame frame : stackTrace.getFrames()) {
+            if (!frame.isJavaFrame())
+                continue;
+            if (!ownCodeOnly || new File("build/bytecode/" + frame.getMethod().getType().getName() + ".bytecode").isFile()
+                || isProgramClass(frame.getMethod().getType().getName()))
+                return frame;
+        }
+        return ownCodeOnly ? null : stackTrace.getFrames().get(0);
+    }
+
+    private static boolean isProgramClass(final String name) {
+        final String path = name.replace('.', '/') + ".class";
+        return inMemoryClasses != null ? inMemoryClasses.containsKey(path) : new File("build/classes", path).isFile();
+    }
+
+    private static void printTop(final String title, final Map<String, Long> values, final java.util.function.LongFunction<String> format) {
+        System.out.println(title);
+        if (values.isEmpty()) {
+            System.out.println("\tnothing recorded");
+            return;
+        }
+        values.entrySet().stream()
+              .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+              .limit(PROFILE_TOP)
+              .forEach(entry -> System.out.printf("\t%12s  %s\n", format.apply(entry.getValue()), entry.getKey()));
+    }
+
+    private static String megabytes(final long bytes) {
+        return String.format("%.3f mb", bytes / 1024.0 / 1024.0);
+    }
+
+    private static void printProfile(final File recording) {
+        assert recording != null;
+
+        if (!recording.isFile()) {
+            System.out.println("The JVM did not write a flight recording.");
+            return;
+        }
+
+        // Sampled allocations (Java 16+) carry a weight; older JVMs only have the TLAB events, weighted by the size of the TLAB.
+        final Map<String, Long> sampledAllocations = new HashMap<>();
+        final Map<String, Long> tlabAllocations = new HashMap<>();
+        final Map<String, Long> executionSamples = new HashMap<>();
+        long collections = 0;
+        java.time.Duration pauses = java.time.Duration.ZERO;
+        java.time.Duration longestPause = java.time.Duration.ZERO;
+        long peakHeap = -1;
+        try (final jdk.jfr.consumer.RecordingFile file = new jdk.jfr.consumer.RecordingFile(recording.toPath())) {
+            while (file.hasMoreEvents()) {
+                final jdk.jfr.consumer.RecordedEvent event = file.readEvent();
+                final String type = event.getEventType().getName();
+                switch (type) {
+                    case "jdk.ObjectAllocationSample":
+                    case "jdk.ObjectAllocationInNewTLAB":
+                    case "jdk.ObjectAllocationOutsideTLAB": {
+                        final jdk.jfr.consumer.RecordedFrame frame = attributedFrame(event.getStackTrace(), true);
+                        if (frame == null)
+                            break;
+                        final jdk.jfr.consumer.RecordedClass objectClass = event.getClass("objectClass");
+                        final String site = String.format("%s (%s.%s:%d)", objectClass == null ? "?" : objectClass.getName(), frame.getMethod().getType().getName(),
+                                                          frame.getMethod().getName(), frame.getLineNumber());
+                        if (type.equals("jdk.ObjectAllocationSample"))
+                            sampledAllocations.merge(site, event.getLong("weight"), Long::sum);
+                        else
+                            tlabAllocations.merge(site, event.getLong(type.equals("jdk.ObjectAllocationInNewTLAB") ? "tlabSize" : "allocationSize"), Long::sum);
+                        break;
+                    }
+                    case "jdk.ExecutionSample": {
+                        final jdk.jfr.consumer.RecordedFrame frame = attributedFrame(event.getStackTrace(), false);
+                        if (frame != null)
+                            executionSamples.merge(frame.getMethod().getType().getName() + "." + frame.getMethod().getName(), 1L, Long::sum);
+                        break;
+                    }
+                    case "jdk.GarbageCollection": {
+                        collections += 1;
+                        pauses = pauses.plus(event.getDuration("sumOfPauses"));
+                        if (event.getDuration("longestPause").compareTo(longestPause) > 0)
+                            longestPause = event.getDuration("longestPause");
+                        break;
+                    }
+                    case "jdk.GCHeapSummary": {
+                        peakHeap = Math.max(peakHeap, event.getLong("heapUsed"));
+                        break;
+                    }
+                    default:
+                        break;
+                }
+            }
+        } catch (final IOException ex) {
+            System.out.printf("Failed to read the flight recording because of '%s'\n", ex.getMessage());
+            return;
+        }
+
+        System.out.println();
+        System.out.println("PROFILE (" + recording.getPath() + ")");
+        System.out.println("----------");
+        printTop("Top allocation sites (estimated bytes, type, where):", sampledAllocations.isEmpty() ? tlabAllocations : sampledAllocations, jbp::megabytes);
+        final Set<String> bytecodeFiles = new TreeSet<>();
+        for (final String site : (sampledAllocations.isEmpty() ? tlabAllocations : sampledAllocations).keySet()) {
+            final String method = site.substring(site.lastIndexOf('(') + 1, site.lastIndexOf(':'));
+            final File listing = new File("build/bytecode/" + method.substring(0, method.lastIndexOf('.')) + ".bytecode");
+            if (listing.isFile())
+                bytecodeFiles.add(listing.getPath());
+        }
+        if (!bytecodeFiles.isEmpty())
+            System.out.println("\t-> The 'new' instructions of those are in " + String.join(", ", bytecodeFiles));
+        printTop("Hot methods (execution samples):", executionSamples, Long::toString);
+        System.out.printf("Garbage collections: %d, paused for %d ms in total (longest pause %d ms)\n", collections, pauses.toMillis(), longestPause.toMillis());
+        System.out.println("Peak heap usage: " + (peakHeap < 0 ? "unknown (no garbage collection happened)" : megabytes(peakHeap)));
+    }
+
+    private static final File BENCH_RESULTS = new File(".jbp/bench");
+
+    private static void createBenchmarks() {
+        stdout("> Compiling benchmarks...");
+
+        final List<File> sources = new ArrayList<>();
+        try {
+            for (final File file : listAllFiles(new File("bench"))) {
+                if (file.isFile() && file.getName().endsWith(".java") && !file.toPath().startsWith(Paths.get("bench", "libs")))
+                    sources.add(file);
+            }
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to list the benchmark sources.");
+            assert false;
+        }
+        if (sources.isEmpty()) {
+            stdout("\t-> There are no benchmark sources in 'bench'.");
+            return;
+        }
+        final File[] benchLibsArray = new File("bench/libs").listFiles((dir, name) -> name.endsWith(".jar"));
+        final List<File> benchLibs = benchLibsArray == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(benchLibsArray));
+        benchLibs.sort(null);
+        if (benchLibs.stream().noneMatch(lib -> lib.getName().startsWith("jmh-core")) || benchLibs.stream().noneMatch(lib -> lib.getName().startsWith("jmh-generator-annprocess"))) {
+            buildFail("\t-> 'bench/libs' has to contain the JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3).");
+            assert false;
+        }
+        if (!compiler.equalsIgnoreCase("---") && !new File(compiler).exists()) {
+            buildFail("\t-> Specified compiler executable does not exist.");
+            assert false;
+        }
+
+        // Benchmarks get compiled against the finished jar, which also works when the classes have only been in memory.
+        final List<File> classpath = new ArrayList<>();
+        classpath.add(new File("build/release/" + programName));
+        if (packaging.equalsIgnoreCase("thin"))
+            classpath.addAll(libraryJars());
+        classpath.addAll(benchLibs);
+        final String classpathString = classpath.stream().map(File::getPath).collect(Collectors.joining(File.pathSeparator));
+
+        final File classes = new File("build/benchmarks");
+        classes.mkdirs();
+        writeToFile("build/bench-sources.txt", sources.stream().map(file -> "\"" + file.getPath().replace('\\', '/') + "\"").collect(Collectors.joining("\n")));
+        final List<String> args = new ArrayList<>(16);
+        args.add("-classpath");
+        args.add(classpathString);
+        // Naming the processor path turns on annotation processing, newer compilers no longer do that on their own.
+        args.add("-processorpath");
+        args.add(classpathString);
+        args.add("@build/bench-sources.txt");
+        args.add("-Xdiags:verbose");
+        args.add("-Xmaxerrs");
+        args.add("5");
+        args.add("-nowarn");
+        args.add(mode.equalsIgnoreCase("debug") ? "-g" : "-g:none");
+        args.add("-d");
+        args.add(classes.getPath());
+        args.add("-encoding");
+        args.add(encoding);
+        Object[] result = null;
+        try {
+            result = runTool("javac", compiler, args.toArray(new String[0]));
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to compile the benchmarks.");
+            assert false;
+        } finally {
+            new File("build/bench-sources.txt").delete();
+        }
+        assert result != null;
+        if ((int) result[1] != 0) {
+            stdout("\t-> COMPILATION ERROR");
+            stdout(null);
+            buildFail("############################\nERRORS\n\n" + result[0] + "\n############################");
+            assert false;
+        }
+
+        // One self-contained jar, the way JMH expects to be run.
+        final File benchmarks = new File("build/benchmarks.jar");
+        final File benchmarkClasses = new File("build/benchmark-classes.jar");
+        try {
+            final Map<String, byte[]> entries = new TreeMap<>();
+            for (final File file : listAllFiles(classes)) {
+                if (file.isFile())
+                    entries.put(classes.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/'), Files.readAllBytes(file.toPath()));
+            }
+            writeJar(benchmarkClasses, "Manifest-Version: 1.0\nMain-Class: org.openjdk.jmh.Main\nCreated-By: jbp\n", entries);
+            final List<File> jars = new ArrayList<>();
+            jars.add(benchmarkClasses);
+            jars.addAll(classpath);
+            mergeJars(benchmarks, jars, new ArrayList<>());
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to create the benchmarks jar: " + ex.getMessage());
+            assert false;
+        } finally {
+            benchmarkClasses.delete();
+        }
+        stdout(String.format("\t-> Compiled %d benchmark sources into %s (%.3f kb), run them with 'java jbp --bench'.\n", sources.size(), benchmarks.getPath(),
+                             benchmarks.length() / 1024.0f));
+    }
+
+    // Reads any JSON value: objects become maps, arrays lists, numbers doubles. 'pos' is the index to start at and gets advanced.
+    private static Object parseJson(final String str, final int[] pos) {
+        while (Character.isWhitespace(str.charAt(pos[0])))
+            pos[0] += 1;
+        final char c = str.charAt(pos[0]);
+        if (c == '{' || c == '[') {
+            final Map<String, Object> object = new LinkedHashMap<>();
+            final List<Object> array = new ArrayList<>();
+            pos[0] += 1;
+            while (true) {
+                while (Character.isWhitespace(str.charAt(pos[0])) || str.charAt(pos[0]) == ',')
+                    pos[0] += 1;
+                if (str.charAt(pos[0]) == '}' || str.charAt(pos[0]) == ']') {
+                    pos[0] += 1;
+                    return c == '{' ? object : array;
+                }
+                if (c == '{') {
+                    final StringBuilder key = new StringBuilder();
+                    pos[0] = parseJsonString(str, pos[0], key);
+                    while (str.charAt(pos[0]) != ':')
+                        pos[0] += 1;
+                    pos[0] += 1;
+                    object.put(key.toString(), parseJson(str, pos));
+                } else {
+                    array.add(parseJson(str, pos));
+                }
+            }
+        }
+        if (c == '"') {
+            final StringBuilder value = new StringBuilder();
+            pos[0] = parseJsonString(str, pos[0], value);
+            return value.toString();
+        }
+        final int start = pos[0];
+        while (pos[0] < str.length() && ",}] \t\r\n".indexOf(str.charAt(pos[0])) == -1)
+            pos[0] += 1;
+        final String literal = str.substring(start, pos[0]);
+        if (literal.equals("null"))
+            return null;
+        if (literal.equals("true") || literal.equals("false"))
+            return Boolean.valueOf(literal);
+        return literal.equals("NaN") ? Double.NaN : Double.parseDouble(literal);
+    }
+
+    // Benchmark (with its mode and parameters) -> {score, error, 1 if higher is better}, from the JSON JMH writes.
+    private static Map<String, double[]> readBenchmarkResults(final File file) throws IOException {
+        final Map<String, double[]> results = new TreeMap<>();
+        final String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        if (json.isBlank())
+            return results;
+        for (final Object element : (List<?>) parseJson(json, new int[] {0})) {
+            final Map<?, ?> benchmark = (Map<?, ?>) element;
+            final StringBuilder name = new StringBuilder((String) benchmark.get("benchmark"));
+            name.append(" [").append(benchmark.get("mode")).append(']');
+            if (benchmark.get("params") instanceof Map)
+                name.append(' ').append(new TreeMap<>((Map<?, ?>) benchmark.get("params")));
+            final Map<?, ?> metric = (Map<?, ?>) benchmark.get("primaryMetric");
+            final Object error = metric.get("scoreError");
+            results.put(name.toString(), new double[] {((Number) metric.get("score")).doubleValue(), error instanceof Number ? ((Number) error).doubleValue() : Double.NaN,
+                                                      "thrpt".equals(benchmark.get("mode")) ? 1 : 0});
+        }
+        return results;
+    }
+
+    private static int runBenchmarks(final String pattern) {
+        if (build() != 0)
+            return -1;
+        final File benchmarks = new File("build/benchmarks.jar");
+        if (!benchmarks.isFile()) {
+            System.out.println("There are no benchmarks in 'bench'.");
+            return -1;
+        }
+
+        final File[] previousResults = BENCH_RESULTS.listFiles((dir, name) -> name.endsWith(".json"));
+        BENCH_RESULTS.mkdirs();
+        final File results = new File(BENCH_RESULTS, new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        final List<String> args = new ArrayList<>();
+        args.add(jvm.equalsIgnoreCase("---") ? "java" : jvm);
+        args.add("-jar");
+        args.add(benchmarks.getPath());
+        if (pattern != null)
+            args.add(pattern);
+        args.add("-rf");
+        args.add("json");
+        args.add("-rff");
+        args.add(results.getPath());
+        System.out.println();
+        System.out.println("Running benchmarks...");
+        System.out.println("----------");
+        try {
+            if (execShellCommand(null, System.out::println, args.toArray(new String[0])) != 0 || !results.isFile()) {
+                System.out.println("Failed to run the benchmarks.");
+                results.delete();
+                return -1;
+            }
+        } catch (final IOException ex) {
+            System.out.printf("Failed to run the benchmarks because of '%s'\n", ex.getMessage());
+            return -1;
+        }
+
+        final Map<String, double[]> current;
+        Map<String, double[]> previous = new TreeMap<>();
+        File previousFile = null;
+        try {
+            current = readBenchmarkResults(results);
+            if (previousResults != null && previousResults.length > 0) {
+                Arrays.sort(previousResults);
+                previousFile = previousResults[previousResults.length - 1];
+                previous = readBenchmarkResults(previousFile);
+            }
+        } catch (final IOException | RuntimeException ex) {
+            System.out.printf("Failed to read the benchmark results because of '%s'\n", ex.getMessage());
+            return -1;
+        }
+
+        System.out.println();
+        System.out.println("BENCHMARK RESULTS (" + results.getPath() + (previousFile == null ? ")" : ", compared to " + previousFile.getName() + ")"));
+        System.out.println("----------");
+        int regressions = 0;
+        for (final Map.Entry<String, double[]> entry : current.entrySet()) {
+            final double[] now = entry.getValue();
+            final double[] before = previous.get(entry.getKey());
+            String change = "";
+            String flag = "";
+            if (before != null && before[0] != 0) {
+                final double percent = (now[0] - before[0]) / before[0] * 100;
+                change = String.format("%+.1f%%", percent);
+                final double worse = now[2] == 1 ? -percent : percent;
+                // Only differences beyond the error margins of both runs count.
+                final boolean significant = Double.isNaN(now[1]) || Double.isNaN(before[1]) || Math.abs(now[0] - before[0]) > now[1] + before[1];
+                if (worse > benchThresholdPercent && significant) {
+                    flag = "REGRESSION";
+                    regressions += 1;
+                }
+            }
+            System.out.printf("%-10s %14.3f %-14s %8s  %s\n", flag, now[0], Double.isNaN(now[1]) ? "" : String.format("+- %.3f", now[1]), change, entry.getKey());
+        }
+        if (regressions > 0) {
+            System.out.printf("%d benchmarks got more than %d%% worse.\n", regressions, benchThresholdPercent);
+            return -1;
+        }
+        return 0;
+    }
+
+    private static void packageRelease() {
+        stdout("> Packaging release...");
+        final File release = new File("build/release");
+        assert release.isDirectory(); // created by copyReleaseFiles
+
+        // The executable is not needed in 'build' anymore, so it can simply be moved.
+        final Path program = Paths.get("build", programName);
+        final Path target = release.toPath().resolve(programName);
+        try {
+            try {
+                Files.move(program, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final java.nio.file.AtomicMoveNotSupportedException ex) {
+                Files.move(program, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to move executable to release directory.");
+            assert false;
+        }
+
+        new File("build/Manifest.txt").delete();
+
+        final long sizeOfReleaseInBytes = releaseFilesBytes + target.toFile().length();
+        buildStats.put("release_bytes", sizeOfReleaseInBytes);
+        stdout(String.format("\t-> The full size of your release is %.3f %s\n", sizeOfReleaseInBytes / 1024.0f, "kb."));
+    }
+
+    private static void createExecutable() {
+        stdout("> Building executable...");
+
+        // building manifest
+        final StringBuilder mfData = new StringBuilder(64);
+        mfData.append("Manifest-Version: 1.0").append(System.lineSeparator());
+
+        // A fat executable contains the libraries itself.
+        final List<File> jars = packaging.equalsIgnoreCase("fat") ? new ArrayList<>() : libraryJars();
+        if (!jars.isEmpty()) {
+            final StringBuilder classpath = new StringBuilder(128);
+            for (final File jar : jars) {
+                classpath.append("libs/");
+                classpath.append(jar.getName()).append(" ");
+            }
+            // class path must not end with the delimitter ' '.
+            assert classpath.toString().charAt(classpath.toString().length() - 1) == ' ';
+            classpath.deleteCharAt(classpath.toString().length() - 1);
+            assert classpath.toString().charAt(classpath.toString().length() - 1) != ' ';
+
+            mfData.append("Class-Path: " + classpath.toString()).append(System.lineSeparator());
+        }
+
+        String javacVersion = null;
+        if (reproducibleBool) {
+            // The compiler version would make the same sources result in a different jar on another machine.
+            javacVersion = "jbp";
+        } else if (compiler.equalsIgnoreCase("---")) {
+            // We compiled with the compiler of the JDK we are running on, no need to ask javac.
+            javacVersion = "javac " + System.getProperty("java.version");
+        } else {
+            try {
+                javacVersion = (String) execShellCommand(null, false, compiler, "-version")[0];
+            } catch (final IOException ex) {
+                javacVersion = "java";
+            }
+        }
+        assert javacVersion != null;
+        mfData.append("Created-By: ").append(javacVersion.strip()).append(System.lineSeparator());
+
+        if (inMemoryBool) {
+            assert inMemoryClasses != null;
+            stdout("\t-> Writing class files straight from memory.");
+            if (!entryPoint.equals("--NoMainFound--")) {
+                String mainClass = null;
+                for (final String name : inMemoryClasses.keySet()) {
+                    if (name.equals(entryPoint + ".class") || name.endsWith("/" + entryPoint + ".class")) {
+                        mainClass = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                        break;
+                    }
+                }
+                if (mainClass == null) {
+                    buildFail(String.format("\t-> Main class '%s' does not exist.", entryPoint));
+                    assert false;
+                }
+                mfData.append("Main-Class: ").append(mainClass).append(System.lineSeparator());
+            }
+            try {
+                writeJar(new File("build/" + programName), mfData.toString(), inMemoryClasses);
+            } catch (final IOException ex) {
+                buildFail("\t-> Failed to create executable.");
+                assert false;
+            }
+
+            final File program = new File("build/" + programName);
+            buildStats.put("jar_bytes", program.length());
+            stdout(String.format("\t-> Size of executable is %.3f %s\n", program.length() / 1024.0f, "kb."));
+            return;
+        }
+        writeToFile("build/Manifest.txt", mfData.toString());
+
+        File[] classes = null;
+        try {
+            classes = listAllFiles(new File("build/classes"));
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to create executable.");
+            assert false;
+        }
+        assert classes != null;
+
+        boolean usesPackages = false;
+        for (int i = 0, l = classes.length; i < l; ++i) {
+            if (classes[i].isDirectory() && i != 0) { // the first one is 'build/classes' itself
+                usesPackages = true; // remember that just using directories are not packages, you have to use the package statement
+                break;
+            }
+        }
+        if (usesPackages)
+            stdout("\t-> Java packages are used.");
+        else
+            stdout("\t-> No java packages are used.");
+
+        if (reproducibleBool || compressionLevel != -1) {
+            // The jar tool has no way to fix the entry order and times, so we write the jar ourselves.
+            final Path classesDir = Paths.get("build/classes");
+            final Map<String, byte[]> entries = new TreeMap<>();
+            String mainClass = null;
+            try {
+                for (final File file : classes) {
+                    if (file.isDirectory())
+                        continue;
+                    final String name = classesDir.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+                    entries.put(name, Files.readAllBytes(file.toPath()));
+                    if (mainClass == null && !entryPoint.equals("--NoMainFound--") && file.getName().equals(entryPoint + ".class"))
+                        mainClass = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                }
+            } catch (final IOException ex) {
+                buildFail("\t-> Failed to read the class files.");
+                assert false;
+            }
+            if (!entryPoint.equals("--NoMainFound--")) {
+                if (mainClass == null) {
+                    buildFail(String.format("\t-> Main class '%s' does not exist.", entryPoint));
+                    assert false;
+                }
+                mfData.append("Main-Class: ").append(mainClass).append(System.lineSeparator());
+            }
+            final File program = new File("build/" + programName);
+            try {
+                writeJar(program, mfData.toString(), entries);
+            } catch (final IOException ex) {
+                buildFail("\t-> Failed to create executable.");
+                assert false;
+            }
+            if (reproducibleBool)
+                stdout("\t-> Entries are sorted and timestamped " + jarEntryTime() + ".");
+            buildStats.put("jar_bytes", program.length());
+            stdout(String.format("\t-> Size of executable is %.3f %s\n", program.length() / 1024.0f, "kb."));
+            return;
+        }
+        if (!jar.equalsIgnoreCase("---") && !new File(jar).exists()) {
+            buildFail("\t-> Specified jar executable does not exist.");
+            assert false;
+        }
+
+        final List<String> args = new ArrayList<>(8);
+        // find out entry point
+        if (entryPoint.equals("--NoMainFound--")) {
+            args.add("cfm");
+            args.add("build/" + programName);  // gets moved to release later
+            args.add("build/Manifest.txt");    // gets deleted later
+        } else {
+            final Path classesDir = Paths.get("build/classes");
+            String mainClass = null;
+            for (int i = 0, l = classes.length; i < l; ++i) {
+                final File file = classes[i];
+                if (!file.isDirectory() && file.getName().equals(entryPoint + ".class")) {
+                    final String name = classesDir.relativize(file.toPath()).toString();
+                    mainClass = name.substring(0, name.length() - ".class".length()).replace(File.separatorChar, '.');
+                    break;
+                }
+            }
+            if (mainClass == null) {
+                buildFail(String.format("\t-> Main class '%s' does not exist.", entryPoint));
+                assert false;
+            }
+            args.add("cfme");
+            args.add("build/" + programName);  // gets moved to release later
+            args.add("build/Manifest.txt");    // gets deleted later
+            args.add(mainClass);
+        }
+        args.add("-C");
+        args.add("build/classes");
+        args.add(".");
+
+        try {
+            final Object[] result = runTool("jar", jar, args.toArray(new String[0]));
+            if ((int) result[1] != 0) {
+                stdout(result[0].toString());
+                buildFail("\t-> Failed to create executable.");
+                assert false;
+            }
+        } catch (final IOException ex) {
+           buildFail("\t-> Failed to create executable.");
+           assert false;
+        }
+
+        final File program = new File("build/" + programName);
+        if (program.length() == 0) {
+            buildFail("\t-> Failed to create executable.");
+            assert false;
+        }
+        traceWritten(program.length()); // the jar tool wrote it
+        buildStats.put("jar_bytes", program.length());
+
+        stdout(String.format("\t-> Size of executable is %.3f %s\n", program.length() / 1024.0f, "kb."));
+    }
+
+    // A cache entry is a header line with the class name, its counts and how many lines follow for the hot path report
+    // and for the method metrics, then those lines (tab separated) and then the listing.
+    // Returns the counts of a cached class, adds its findings and metrics and optionally writes its listing to build/bytecode,
+    // or returns null if it is not cached.
+    private static long[] readCacheEntry(final File entry, final boolean writeListing, final java.util.Collection<HotPathMethod> hotPath, final Map<String, int[]> metrics) {
+        assert entry != null;
+
+        try {
+            final byte[] content = Files.readAllBytes(entry.toPath());
+            int start = 0;
+            final List<String> lines = new ArrayList<>();
+            for (int end = 0, wanted = 1; lines.size() < wanted; ++end) {
+                if (end == content.length)
+                    return null; // cut off
+                if (content[end] != '\n')
+                    continue;
+                lines.add(new String(content, start, end - start, StandardCharsets.UTF_8));
+                start = end + 1;
+                if (lines.size() == 1) {
+                    final String[] header = lines.get(0).split(" ");
+                    if (header.length != 8 || !header[0].equals(BYTECODE_CACHE_FORMAT))
+                        return null;
+                    wanted += Integer.parseInt(header[6]) + Integer.parseInt(header[7]);
+                }
+            }
+            final String[] header = lines.get(0).split(" ");
+            final int hotPathLines = Integer.parseInt(header[6]);
+
+            // Everything gets parsed before anything is added, a broken entry is a miss and not half a class.
+            final List<HotPathMethod> methods = new ArrayList<>(hotPathLines);
+            for (final String line : lines.subList(1, 1 + hotPathLines)) {
+                final String[] columns = line.split("\t");
+                final HotPathMethod method = new HotPathMethod(columns[0], Integer.parseInt(columns[1]));
+                method.severity = Integer.parseInt(columns[2]);
+                for (int i = 3; i + 1 < columns.length; i += 2)
+                    method.findings.put(columns[i], Integer.parseInt(columns[i + 1]));
+                methods.add(method);
+            }
+            final Map<String, int[]> classMetrics = new HashMap<>();
+            for (final String line : lines.subList(1 + hotPathLines, lines.size())) {
+                final String[] columns = line.split("\t");
+                if (columns.length != METRIC_NAMES.length + 1)
+                    return null;
+                final int[] values = new int[METRIC_NAMES.length];
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = Integer.parseInt(columns[i + 1]);
+                classMetrics.put(columns[0], values);
+            }
+
+            if (writeListing) {
+                try (final OutputStream out = new FileOutputStream("build/bytecode/" + header[1] + ".bytecode")) {
+                    out.write(content, start, content.length - start);
+                }
+            }
+            hotPath.addAll(methods);
+            metrics.putAll(classMetrics);
+            // Remember when it was used last, that is what we evict by.
+            entry.setLastModified(System.currentTimeMillis());
+            return new long[] {Long.parseLong(header[2]), Long.parseLong(header[3]), Long.parseLong(header[4]), Long.parseLong(header[5])};
+        } catch (final IOException | RuntimeException ex) {
+            return null; // treat it like a miss
+        }
+    }
+
+    private static void writeCacheEntry(final File entry, final String className, final long[] counts, final List<HotPathMethod> hotPath, final Map<String, int[]> metrics, final String listing) {
+        final StringBuilder sb = new StringBuilder(listing.length() + 128 + metrics.size() * 64);
+        sb.append(BYTECODE_CACHE_FORMAT).append(' ').append(className);
+        for (final long count : counts)
+            sb.append(' ').append(count);
+        sb.append(' ').append(hotPath.size()).append(' ').append(metrics.size()).append('\n');
+        for (final HotPathMethod method : hotPath) {
+            sb.append(method.name).append('\t').append(method.codeLength).append('\t').append(method.severity);
+            for (final Map.Entry<String, Integer> finding : method.findings.entrySet())
+                sb.append('\t').append(finding.getKey()).append('\t').append(finding.getValue());
+            sb.append('\n');
+        }
+        for (final Map.Entry<String, int[]> method : metrics.entrySet()) {
+            sb.append(method.getKey());
+            for (final int metric : method.getValue())
+                sb.append('\t').append(metric);
+            sb.append('\n');
+        }
+        sb.append(listing);
+
+        final File tmp = new File(entry.getPath() + ".tmp" + Thread.currentThread().getId());
+        try {
+            Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            // Other jbp processes might use the same cache, so an entry has to appear all at once.
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ex) {
+            tmp.delete(); // not having it cached is fine
+        }
+    }
+
+    // Evicts the least recently used listings until the cache fits into its budget.
+    private static void trimBytecodeCache() {
+        final File[] entries = BYTECODE_CACHE.listFiles();
+        if (entries == null)
+            return;
+
+        final long[] lastUsed = new long[entries.length];
+        long size = 0;
+        for (int i = 0; i < entries.length; ++i) {
+            lastUsed[i] = entries[i].lastModified();
+            size += entries[i].length();
+        }
+        final Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+        java.util.Arrays.sort(order, (lhs, rhs) -> Long.compare(lastUsed[lhs], lastUsed[rhs]));
+
+        final long budget = bytecodeCacheSizeMb * 1024L * 1024L;
+        for (int i = 0; i < order.length && size > budget; ++i) {
+            final File entry = entries[order[i]];
+            final long length = entry.length();
+            if (entry.delete())
+                size -= length;
+        }
+    }
+
+    // Counts the instructions of a class, adds its hot path findings and method metrics and optionally writes its listing to
+    // build/bytecode. Classes are looked up in the bytecode cache by their hash first, only a miss parses the class file (once).
+    // Returns the number of instructions, invokes, 'putfield' and 'new' instructions.
+    private static long[] analyzeClassFile(final byte[] data, final boolean useCache, final boolean writeListing,
+                                           final java.util.Collection<HotPathMethod> hotPath, final Map<String, int[]> metrics) {
+        assert data != null;
+
+        File cacheEntry = null;
+        if (useCache && bytecodeCacheSizeMb > 0) {
+            cacheEntry = new File(BYTECODE_CACHE, sha256(data));
+            final long[] counts = readCacheEntry(cacheEntry, writeListing, hotPath, metrics);
+            if (counts != null) {
+                bytecodeCacheHits.incrementAndGet();
+                return counts;
+            }
+            bytecodeCacheMisses.incrementAndGet();
+        }
+
+        try {
+            final ClassFile classFile = new ClassFile(data);
+            final long[] counts = new long[4];
+            for (final ClassFile.Member method : classFile.methods) {
+                if (method.codeOffset == -1)
+                    continue;
+                for (int pc = 0; pc < method.codeLength; pc += classFile.instructionLength(method.codeOffset, pc)) {
+                    final int opcode = classFile.u1(method.codeOffset + pc);
+                    counts[0] += 1;
+                    if (opcode >= 182 && opcode <= 186) // invokevirtual, invokespecial, invokestatic, invokeinterface, invokedynamic
+                        counts[1] += 1;
+                    else if (opcode == 181) // putfield
+                        counts[2] += 1;
+                    else if (opcode == 187) // new
+                        counts[3] += 1;
+                }
+            }
+            final List<HotPathMethod> classHotPath = hotPathFindings(classFile);
+            final Map<String, int[]> classMetrics = new LinkedHashMap<>();
+            methodMetrics(classFile, classMetrics);
+            hotPath.addAll(classHotPath);
+            metrics.putAll(classMetrics);
+
+            // Without the listing there is nothing to cache, the class files of a build cache hit come with theirs anyway.
+            if (writeListing) {
+                final String className = classFile.name.replace('/', '.');
+                final String listing = classFile.disassemble();
+                writeToFile("build/bytecode/" + className + ".bytecode", listing);
+                if (cacheEntry != null)
+                    writeCacheEntry(cacheEntry, className, counts, classHotPath, classMetrics, listing);
+            }
+            return counts;
+        } catch (final IOException ex) {
+            throw new java.io.UncheckedIOException(ex);
+        }
+    }
+
+    // Writes the output of 'javap -c' into one .bytecode file per class while it is being read.
+    private static final class JavapSplitter implements Consumer<String>, AutoCloseable {
+
+        private final File directory;
+        private java.io.Writer current = null;
+        private List<String> pending = null; // lines of a class whose name we do not know yet
+        private long written = 0;
+
+        JavapSplitter(final File directory) {
+            assert directory != null;
+            this.directory = directory;
+        }
+
+        @Override
+        public void accept(final String line) {
+            try {
+                if (line.startsWith("Compiled from")) {
+                    close();
+                    pending = new ArrayList<>();
+                } else if (pending != null) {
+                    pending.add(line);
+                    if (line.contains("class") || line.contains("interface")) {
+                        final String[] words = line.split(" ");
+                        for (int k = 0; k < words.length - 1; ++k) {
+                            if (words[k].equals("class") || words[k].equals("interface")) {
+                                // Remove illegal characters, which can occur when having a file which uses generics
+                                final String fileName = (words[k + 1] + ".bytecode").replace("<", "").replace(">", "");
+                                current = new java.io.BufferedWriter(new java.io.OutputStreamWriter(new FileOutputStream(new File(directory, fileName)), StandardCharsets.UTF_8));
+                                for (final String pendingLine : pending)
+                                    write(pendingLine);
+                                break;
+                            }
+                        }
+                        pending = null; // without a name the class gets skipped
+                    }
+                } else if (current != null) {
+                    write(line);
+                }
+            } catch (final IOException ex) {
+                throw new java.io.UncheckedIOException(ex);
+            }
+        }
+
+        private void write(final String line) throws IOException {
+            current.write(line);
+            current.write('\n');
+            written += line.length() + 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            traceWritten(written);
+            written = 0;
+        }
+    }
+
+    // HotSpot's defaults of -XX:MaxInlineSize, -XX:FreqInlineSize and -XX:HugeMethodLimit, in bytes of bytecode.
+    private static final int MAX_INLINE_SIZE   = 35;
+    private static final int FREQ_INLINE_SIZE  = 325;
+    private static final int HUGE_METHOD_LIMIT = 8000;
+
+    private static final String[] SEVERITIES = {"", "LOW", "MEDIUM", "HIGH"};
+    private static final Set<String> BOX_TYPES = Set.of("java/lang/Boolean", "java/lang/Byte", "java/lang/Character", "java/lang/Short",
+                                                        "java/lang/Integer", "java/lang/Long", "java/lang/Float", "java/lang/Double");
+
+    // What the hot path report says about one method.
+    private static final class HotPathMethod {
+        final String name;
+        final int codeLength;
+        int severity = 0;
+        final Map<String, Integer> findings = new LinkedHashMap<>(); // finding -> how often
+
+        HotPathMethod(final String name, final int codeLength) {
+            this.name = name;
+            this.codeLength = codeLength;
+        }
+
+        void add(final int severity, final String finding) {
+            this.severity = Math.max(this.severity, severity);
+            findings.merge(SEVERITIES[severity] + ": " + finding, 1, Integer::sum);
+        }
+    }
+
+    private static String where(final int[][] lines, final int pc) {
+        // The entry with the greatest start pc which is not past 'pc'.
+        int index = Arrays.binarySearch(lines[0], pc);
+        if (index < 0)
+            index = -index - 2;
+        return index < 0 ? " (pc " + pc + ")" : " (line " + lines[1][index] + ")";
+    }
+
+    // Methods the JIT will not compile or inline well, and the places in them which allocate on every iteration of a loop.
+    private static List<HotPathMethod> hotPathFindings(final ClassFile classFile) {
+        final List<HotPathMethod> result = new ArrayList<>();
+        for (final ClassFile.Member method : classFile.methods) {
+            if (method.codeOffset == -1)
+                continue;
+            final HotPathMethod report = new HotPathMethod(classFile.name.replace('/', '.') + "." + method.name + method.descriptor, method.codeLength);
+            if (method.codeLength > HUGE_METHOD_LIMIT)
+                report.add(3, "larger than HugeMethodLimit (" + HUGE_METHOD_LIMIT + " bytes), the JIT does not compile it at all");
+            else if (method.codeLength > FREQ_INLINE_SIZE)
+                report.add(2, "larger than FreqInlineSize (" + FREQ_INLINE_SIZE + " bytes), never inlined, not even when it is hot");
+            else if (method.codeLength > MAX_INLINE_SIZE)
+                report.add(1, "larger than MaxInlineSize (" + MAX_INLINE_SIZE + " bytes), only inlined when it is hot");
+
+            final boolean[] loopCode = classFile.loopCode(method);
+            final int[][] lines = classFile.lineNumbers(method);
+            for (int pc = 0; pc < method.codeLength; pc += classFile.instructionLength(method.codeOffset, pc)) {
+                final int at = method.codeOffset + pc;
+                final int opcode = classFile.u1(at);
+                final boolean inLoop = loopCode[pc];
+
+                if (inLoop && (opcode == 187 || opcode == 189)) { // new, anewarray
+                    report.add(3, "allocates " + classFile.className(classFile.u2(at + 1)).replace('/', '.') + (opcode == 187 ? "" : " array") + " in a loop" + where(lines, pc));
+                } else if (inLoop && opcode == 188) { // newarray
+                    report.add(3, "allocates a primitive array in a loop" + where(lines, pc));
+                } else if (inLoop && opcode == 197) { // multianewarray
+                    report.add(3, "allocates a multi-dimensional array in a loop" + where(lines, pc));
+                } else if (opcode == 184) { // invokestatic
+                    final String callee = classFile.memberReference(classFile.u2(at + 1));
+                    final int dot = callee.indexOf('.');
+                    if (BOX_TYPES.contains(callee.substring(0, dot)) && callee.startsWith("valueOf:(", dot + 1) && callee.charAt(dot + 10) != 'L')
+                        report.add(inLoop ? 3 : 2, "autoboxing into " + callee.substring(0, dot).replace('/', '.') + (inLoop ? " in a loop" : "") + where(lines, pc));
+                } else if (opcode == 186 && inLoop) { // invokedynamic
+                    final int index = classFile.u2(at + 1);
+                    final String bootstrap = classFile.bootstrapOwner(index);
+                    final String descriptor = classFile.utf8(classFile.u2(classFile.cpOffsets[classFile.u2(classFile.cpOffsets[index] + 3)] + 3));
+                    if (bootstrap.equals("java/lang/invoke/StringConcatFactory"))
+                        report.add(3, "string concatenation in a loop, a new String every iteration" + where(lines, pc));
+                    else if (bootstrap.equals("java/lang/invoke/LambdaMetafactory") && !descriptor.startsWith("()"))
+                        report.add(2, "capturing lambda or method reference in a loop, a new object every iteration" + where(lines, pc));
+                }
+            }
+            if (report.severity > 0)
+                result.add(report);
+        }
+        return result;
+    }
+
+    private static final File METHOD_METRICS = new File(".jbp/method-metrics");
+    private static final String[] METRIC_NAMES = {"instructions", "bytes", "new", "invokes", "max stack", "max locals"};
+    private static final int METRICS_SHOWN = 10;
+
+    // Per method: instruction count, code size, allocation sites, invokes, max stack and max locals.
+    private static void methodMetrics(final ClassFile classFile, final Map<String, int[]> out) {
+        for (final ClassFile.Member method : classFile.methods) {
+            if (method.codeOffset == -1)
+                continue;
+            final int[] metrics = new int[METRIC_NAMES.length];
+            metrics[1] = method.codeLength;
+            metrics[4] = method.maxStack;
+            metrics[5] = method.maxLocals;
+            for (int pc = 0; pc < method.codeLength; pc += classFile.instructionLength(method.codeOffset, pc)) {
+                final int opcode = classFile.u1(method.codeOffset + pc);
+                metrics[0] += 1;
+                if (opcode == 187 || opcode == 188 || opcode == 189 || opcode == 197) // new, newarray, anewarray, multianewarray
+                    metrics[2] += 1;
+                else if (opcode >= 182 && opcode <= 186) // invokevirtual, invokespecial, invokestatic, invokeinterface, invokedynamic
+                    metrics[3] += 1;
+            }
+            out.put(classFile.name.replace('/', '.') + "." + method.name + method.descriptor, metrics);
+        }
+    }
+
+    // Compares the metrics with the ones of the previous build and keeps them for the next one.
+    private static void diffMethodMetrics(final Map<String, int[]> current) throws IOException {
+        final Map<String, int[]> previous = new HashMap<>();
+        if (METHOD_METRICS.isFile()) {
+            for (final String line : Files.readAllLines(METHOD_METRICS.toPath(), StandardCharsets.UTF_8)) {
+                final String[] columns = line.split("\t");
+                if (columns.length != METRIC_NAMES.length + 1)
+                    continue;
+                final int[] metrics = new int[METRIC_NAMES.length];
+                for (int i = 0; i < metrics.length; ++i)
+                    metrics[i] = Integer.parseInt(columns[i + 1]);
+                previous.put(columns[0], metrics);
+            }
+        }
+
+        final List<String> names = new ArrayList<>(current.keySet());
+        names.sort(null);
+        final StringBuilder sb = new StringBuilder(names.size() * 64);
+        for (final String name : names) {
+            sb.append(name);
+            for (final int metric : current.get(name))
+                sb.append('\t').append(metric);
+            sb.append('\n');
+        }
+        Files.createDirectories(METHOD_METRICS.getParentFile().toPath());
+        Files.write(METHOD_METRICS.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        if (previous.isEmpty()) {
+            stdout("\t-> Saved the metrics of every method, the next build compares its own with them.\n");
+            return;
+        }
+
+        // The size of a method matters most for the JIT, so that comes first, then how many allocations and calls changed.
+        final Set<String> all = new java.util.TreeSet<>(current.keySet());
+        all.addAll(previous.keySet());
+        final int[] none = new int[METRIC_NAMES.length];
+        final List<Object[]> changes = new ArrayList<>(); // {name, deltas, weight}
+        int added = 0, removed = 0;
+        for (final String name : all) {
+            final int[] before = previous.getOrDefault(name, none);
+            final int[] after = current.getOrDefault(name, none);
+            if (Arrays.equals(before, after))
+                continue;
+            added += before == none ? 1 : 0;
+            removed += after == none ? 1 : 0;
+            final int[] deltas = new int[METRIC_NAMES.length];
+            for (int i = 0; i < deltas.length; ++i)
+                deltas[i] = after[i] - before[i];
+            final long weight = Math.abs((long) deltas[1]) * 1000000 + (Math.abs(deltas[2]) + Math.abs(deltas[3])) * 1000 + Math.abs(deltas[0]);
+            changes.add(new Object[] {name, deltas, weight});
+        }
+        if (changes.isEmpty()) {
+            stdout("\t-> No method changed since the previous build.\n");
+            return;
+        }
+        changes.sort((lhs, rhs) -> Long.compare((long) rhs[2], (long) lhs[2]));
+
+        stdout(String.format("\t-> %d methods changed since the previous build (%d new, %d removed), the biggest changes:", changes.size(), added, removed));
+        for (int i = 0; i < Math.min(METRICS_SHOWN, changes.size()); ++i) {
+            final String name = (String) changes.get(i)[0];
+            final int[] deltas = (int[]) changes.get(i)[1];
+            final StringBuilder line = new StringBuilder(name.substring(0, name.indexOf('(')));
+            line.append(previous.containsKey(name) ? (current.containsKey(name) ? ":" : " (removed):") : " (new):");
+            // Bytes first, like '+140 bytes, +3 new', the instruction count last as it mostly follows the bytes.
+            for (final int metric : new int[] {1, 2, 3, 4, 5, 0}) {
+                if (deltas[metric] != 0)
+                    line.append(String.format(" %+d %s,", deltas[metric], METRIC_NAMES[metric]));
+            }
+            line.setLength(line.length() - 1);
+            stdout("\t   " + line);
+        }
+        if (changes.size() > METRICS_SHOWN)
+            stdout(String.format("\t   ... and %d more.", changes.size() - METRICS_SHOWN));
+        stdout(null);
+    }
+
+    private static void writeHotPathReport(final java.util.Collection<HotPathMethod> methods) {
+        final List<HotPathMethod> sorted = new ArrayList<>(methods);
+        sorted.sort((lhs, rhs) -> lhs.severity != rhs.severity ? rhs.severity - lhs.severity
+                                : lhs.findings.size() != rhs.findings.size() ? rhs.findings.size() - lhs.findings.size()
+                                : lhs.codeLength != rhs.codeLength ? rhs.codeLength - lhs.codeLength : lhs.name.compareTo(rhs.name));
+        final int[] perSeverity = new int[SEVERITIES.length];
+        final StringBuilder sb = new StringBuilder(4096);
+        sb.append("Hot path report, most severe first.\n");
+        sb.append(String.format("Sizes are compared with HotSpot's defaults: MaxInlineSize=%d, FreqInlineSize=%d and HugeMethodLimit=%d bytes of bytecode.\n",
+                                MAX_INLINE_SIZE, FREQ_INLINE_SIZE, HUGE_METHOD_LIMIT));
+        sb.append("Loops are found by their backward branches.\n\n");
+        for (final HotPathMethod method : sorted) {
+            perSeverity[method.severity] += 1;
+            sb.append(String.format("[%s] %s (%d bytes)\n", SEVERITIES[method.severity], method.name, method.codeLength));
+            for (final Map.Entry<String, Integer> finding : method.findings.entrySet())
+                sb.append("\t").append(finding.getKey()).append(finding.getValue() > 1 ? " (" + finding.getValue() + " times)" : "").append('\n');
+        }
+        if (sorted.isEmpty())
+            sb.append("Nothing to report.\n");
+        writeToFile("build/bytecode/hotpath-report.txt", sb.toString());
+        stdout(String.format("\t-> Hot path report: %d high, %d medium and %d low severity methods (build/bytecode/hotpath-report.txt).\n",
+                             perSeverity[3], perSeverity[2], perSeverity[1]));
+    }
+
+    private static void createByteCodeFiles() {
+        stdout("> Generating readable bytecode files for easier debugging...");
+
+        final File bytecode = new File("build/bytecode");
+        if (!bytecode.exists()) {
+            if (!bytecode.mkdir()) {
+                buildFail("\t-> Failed to create bytecode directory.");
+                assert false;
+            }
+        }
+
+        // Unless the user wants a specific bytecode viewer we read the class files ourselves.
+        final boolean externalViewer = !bytecodeViewer.equalsIgnoreCase("---");
+        if (externalViewer && !new File(bytecodeViewer).exists()) {
+            buildFail("Specified bytecode viewer executable does not exist.");
+            assert false;
+        }
+
+        if (!externalViewer && bytecodeCacheSizeMb > 0 && !BYTECODE_CACHE.exists() && !BYTECODE_CACHE.mkdirs())
+            stdout("\t-> Failed to create the bytecode cache directory.");
+        bytecodeCacheHits.set(0);
+        bytecodeCacheMisses.set(0);
+
+        try {
+            final List<File> classes = new ArrayList<>();
+            if (inMemoryClasses == null || externalViewer) {
+                for (final File file : listAllFiles(new File("build/classes"))) {
+                    if (file.getName().endsWith(".class"))
+                        classes.add(file);
+                }
+            }
+
+            final Stream<byte[]> classData;
+            if (inMemoryClasses != null) {
+                classData = inMemoryClasses.values().parallelStream();
+            } else {
+                classData = classes.parallelStream().map(file -> {
+                    try {
+                        return Files.readAllBytes(file.toPath());
+                    } catch (final IOException ex) {
+                        throw new java.io.UncheckedIOException(ex);
+                    }
+                });
+            }
+            // Class files restored from the build cache usually come with their listings.
+            final File cachedListings = buildCacheEntry == null || externalViewer ? null : new File(buildCacheEntry, "listings");
+            boolean listingsRestored = false;
+            if (buildCacheHit && cachedListings != null && cachedListings.isDirectory()) {
+                try {
+                    mirrorDirectory(cachedListings, bytecode);
+                    listingsRestored = true;
+                    stdout("\t-> Restored the listings from the build cache.");
+                } catch (final IOException ex) {
+                    // evicted in the meantime, so they get written again
+                }
+            }
+            final boolean writeListings = !externalViewer && !listingsRestored;
+
+            // Every class is independent of the others, so they get processed in parallel on the common fork-join pool.
+            // The last slot sums up the class file sizes, for tracing.
+            final java.util.concurrent.ConcurrentLinkedQueue<HotPathMethod> hotPath = new java.util.concurrent.ConcurrentLinkedQueue<>();
+            final Map<String, int[]> metrics = new java.util.concurrent.ConcurrentHashMap<>();
+            final long[] totals = classData.map(data -> {
+                final long[] counts = Arrays.copyOf(analyzeClassFile(data, !externalViewer, writeListings, hotPath, metrics), 5);
+                counts[4] = data.length;
+                return counts;
+            }).reduce(new long[5], (lhs, rhs) -> {
+                final long[] sum = new long[lhs.length];
+                for (int i = 0; i < sum.length; ++i)
+                    sum[i] = lhs[i] + rhs[i];
+                return sum;
+            });
+            if (inMemoryClasses == null)
+                traceRead(totals[4]);
+
+            if (externalViewer) {
+                final List<String> args = new ArrayList<>(classes.size() + 2);
+                args.add("-c");
+                args.add("-p");
+                for (final File file : classes)
+                    args.add(file.getAbsolutePath());
+
+                try (final JavapSplitter splitter = new JavapSplitter(bytecode)) {
+                    runTool("javap", bytecodeViewer, splitter, args.toArray(new String[0]));
+                }
+            }
+            buildStats.put("bytecode_instructions", totals[0]);
+            buildStats.put("bytecode_calls", totals[1]);
+            buildStats.put("bytecode_fields", totals[2]);
+            buildStats.put("bytecode_news", totals[3]);
+            stdout(String.format("\t-> Total of %d bytecode instructions.\n", totals[0]));
+            stdout(String.format("\t-> Total of %d function calls.\n", totals[1]));
+            stdout(String.format("\t-> Total of %d fields.\n", totals[2]));
+            stdout(String.format("\t-> Total of %d 'new' calls (likely resulting in heap allocations).\n", totals[3]));
+            writeHotPathReport(hotPath);
+            diffMethodMetrics(metrics);
+            if (!externalViewer && bytecodeCacheSizeMb > 0) {
+                trimBytecodeCache();
+                stdout(String.format("\t-> Bytecode cache: %d hits, %d misses.\n", bytecodeCacheHits.get(), bytecodeCacheMisses.get()));
+            }
+            if (cachedListings != null && !listingsRestored) {
+                final File tmp = buildCacheTmp(cachedListings);
+                try {
+                    if (tmp.mkdir()) {
+                        for (final File listing : bytecode.listFiles((dir, name) -> name.endsWith(".bytecode")))
+                            copyFile(listing.toPath(), new File(tmp, listing.getName()).toPath());
+                        publishToBuildCache(tmp, cachedListings);
+                    }
+                } catch (final IOException ex) {
+                    deleteDirectory(tmp); // not having them cached is fine
+                }
+            }
+        } catch (final IOException | java.io.UncheckedIOException ex) {
+            stdout("\t-> Failed to generate readable bytecode files.");
+        }
+    }
+
+    private static void deleteDirectory(final File dir) throws IOException {
+        assert dir != null;
+
+        if (!dir.exists())
+            return;
+        final File[] files = listAllFiles(dir);
+        // listAllFiles() is sorted, so children always come after their parent.
+        for (int i = files.length - 1; i >= 0; --i) {
+            if (!files[i].delete())
+                throw new IOException("Failed to delete " + files[i].getPath());
+        }
+    }
+
+    private static Object[] compileIncrementally(final List<String> options, final String libraries, final char classpathSeparator, final boolean forceFullBuild) throws IOException {
+        assert options != null;
+        assert libraries != null;
+
+        final File stateDir = new File(".jbp/incremental");
+        final File outputDir = new File(stateDir, "classes");
+        final File stateFile = new File(stateDir, "state.txt");
+
+        // Everything besides the sources which has an influence on the emitted bytecode.
+        final StringBuilder keyData = new StringBuilder(256);
+        keyData.append(System.getProperty("java.vendor")).append(System.getProperty("java.version")).append(options);
+        for (final String library : libraries.split(String.valueOf(classpathSeparator))) {
+            final File file = new File(library);
+            keyData.append(library).append(file.length()).append(file.lastModified());
+        }
+        final String key = sha256(keyData.toString().getBytes(StandardCharsets.UTF_8));
+
+        final Map<String, File> sourcesByPath = new TreeMap<>();
+        final Map<String, String> hashes = new TreeMap<>();
+        for (final File file : sourceFiles) {
+            sourcesByPath.put(file.getPath(), file);
+            hashes.put(file.getPath(), sha256(Files.readAllBytes(file.toPath())));
+        }
+
+        final IncrementalState previous = IncrementalState.load(stateFile);
+        final Set<String> changed = new TreeSet<>();
+        for (final Map.Entry<String, String> entry : hashes.entrySet()) {
+            if (previous == null || !entry.getValue().equals(previous.hashes.get(entry.getKey())))
+                changed.add(entry.getKey());
+        }
+
+        String fullBuildReason = null;
+        if (forceFullBuild)
+            fullBuildReason = "compile-time constants changed";
+        else if (previous == null || !outputDir.exists())
+            fullBuildReason = "no previous build state";
+        else if (!previous.key.equals(key))
+            fullBuildReason = "compiler, options or libraries changed";
+        else if (!hashes.keySet().containsAll(previous.hashes.keySet()))
+            fullBuildReason = "source files were removed";
+
+        final Set<String> recompile = new TreeSet<>();
+        if (fullBuildReason == null) {
+            if (changed.isEmpty()) {
+                stdout("\t-> Incremental build: nothing changed.");
+                mirrorDirectory(outputDir, new File("build/classes"));
+                return new Object[] {"", 0};
+            }
+
+            // Classes of changed sources plus all of their subtypes, since code compiled against a subtype
+            // depends on what it inherits without naming the supertype anywhere.
+            final Set<String> dirty = new HashSet<>();
+            for (final Map.Entry<String, IncrementalClass> entry : previous.classes.entrySet()) {
+                if (changed.contains(entry.getValue().source))
+                    dirty.add(entry.getKey());
+            }
+            for (boolean grown = true; grown; ) {
+                grown = false;
+                for (final Map.Entry<String, IncrementalClass> entry : previous.classes.entrySet()) {
+                    if (!dirty.contains(entry.getKey()) && !java.util.Collections.disjoint(entry.getValue().supertypes, dirty)) {
+                        dirty.add(entry.getKey());
+                        grown = true;
+                    }
+                }
+            }
+
+            recompile.addAll(changed);
+            for (final Map.Entry<String, IncrementalClass> entry : previous.classes.entrySet()) {
+                final IncrementalClass info = entry.getValue();
+                if (dirty.contains(entry.getKey()) || !java.util.Collections.disjoint(info.references, dirty))
+                    recompile.add(info.source);
+            }
+        }
+
+        final IncrementalState state = new IncrementalState();
+        state.key = key;
+        if (fullBuildReason != null) {
+            stdout(String.format("\t-> Full recompilation because %s.\n", fullBuildReason));
+            deleteDirectory(outputDir);
+            recompile.addAll(hashes.keySet());
+        } else {
+            // Remove every class file the recompiled sources emitted last time; they might not exist anymore.
+            for (final Map.Entry<String, IncrementalClass> entry : previous.classes.entrySet()) {
+                if (recompile.contains(entry.getValue().source)) {
+                    new File(outputDir, entry.getKey() + ".class").delete();
+                } else {
+                    state.classes.put(entry.getKey(), entry.getValue());
+                }
+            }
+            stdout(String.format("\t-> Incremental build: recompiling %d of %d source files (%d changed).\n", recompile.size(), hashes.size(), changed.size()));
+        }
+        if (!outputDir.exists() && !outputDir.mkdirs())
+            throw new IOException("Failed to create " + outputDir.getPath());
+
+        // A failed or interrupted compile leaves the output directory in an unknown state.
+        stateFile.delete();
+
+        final List<File> sources = new ArrayList<>(recompile.size());
+        final Map<String, String> pathsByAbsolutePath = new HashMap<>();
+        for (final String path : recompile) {
+            sources.add(sourcesByPath.get(path));
+            pathsByAbsolutePath.put(sourcesByPath.get(path).getAbsolutePath(), path);
+        }
+
+        final List<String> compileOptions = new ArrayList<>(options);
+        compileOptions.add("-classpath");
+        compileOptions.add(libraries.isEmpty() ? outputDir.getPath() : outputDir.getPath() + classpathSeparator + libraries);
+        final Map<String, byte[]> classes = new TreeMap<>();
+        final Map<String, String> origins = new HashMap<>();
+        final Object[] result = compileInMemory(sources, compileOptions, classes, origins);
+        if ((int) result[1] != 0)
+            return result;
+
+        final Map<String, ClassFile> compiled = new HashMap<>();
+        for (final Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            final File classFile = new File(outputDir, entry.getKey());
+            classFile.getParentFile().mkdirs();
+            Files.write(classFile.toPath(), entry.getValue());
+
+            final ClassFile classData = new ClassFile(entry.getValue());
+            compiled.put(classData.name, classData);
+            final IncrementalClass info = new IncrementalClass();
+            info.source = pathsByAbsolutePath.get(origins.get(entry.getKey()));
+            assert info.source != null;
+            info.constants = classData.constants;
+            state.classes.put(classData.name, info);
+        }
+
+        // Only now do we know every class of this project, so the dependencies can be resolved.
+        for (final Map.Entry<String, ClassFile> entry : compiled.entrySet()) {
+            final ClassFile classData = entry.getValue();
+            final IncrementalClass info = state.classes.get(entry.getKey());
+            if (classData.superName != null && state.classes.containsKey(classData.superName))
+                info.supertypes.add(classData.superName);
+            for (final String iface : classData.interfaces) {
+                if (state.classes.containsKey(iface))
+                    info.supertypes.add(iface);
+            }
+            for (final String reference : new TreeSet<>(classData.references())) {
+                if (state.classes.containsKey(reference))
+                    info.references.add(reference);
+            }
+        }
+
+        if (fullBuildReason == null) {
+            // javac inlines constants without leaving a reference to the declaring class behind,
+            // so we cannot know who uses them. If any of them changed only a full build is safe.
+            final Map<String, String> oldConstants = new HashMap<>();
+            final Map<String, String> newConstants = new HashMap<>();
+            for (final Map.Entry<String, IncrementalClass> entry : previous.classes.entrySet()) {
+                if (recompile.contains(entry.getValue().source) && !entry.getValue().constants.equals("-"))
+                    oldConstants.put(entry.getKey(), entry.getValue().constants);
+            }
+            for (final ClassFile classData : compiled.values()) {
+                if (!classData.constants.equals("-"))
+                    newConstants.put(classData.name, classData.constants);
+            }
+            if (!oldConstants.equals(newConstants))
+                return compileIncrementally(options, libraries, classpathSeparator, true);
+        }
+
+        state.hashes.putAll(hashes);
+        state.save(stateFile);
+        mirrorDirectory(outputDir, new File("build/classes"));
+        return result;
+    }
+
+    private static void mirrorDirectory(final File from, final File to) throws IOException {
+        assert from != null;
+        assert to != null;
+
+        final Path source = from.toPath();
+        for (final File file : listAllFiles(from)) {
+            final File target = to.toPath().resolve(source.relativize(file.toPath())).toFile();
+            if (file.isDirectory())
+                target.mkdirs();
+            else
+                copyFile(file.toPath(), target.toPath());
+        }
+    }
+
+    // Shared by every project and checkout on this machine, so the same sources only get compiled once.
+    // An entry holds the class files, the listings and the executables built from them.
+    private static final File BUILD_CACHE = System.getenv("JBP_CACHE") != null ? new File(System.getenv("JBP_CACHE"))
+                                                                               : new File(System.getProperty("user.home"), ".jbp/cache");
+    private static final String BUILD_CACHE_FORMAT = "jbp-cache-1"; // bump when the layout of an entry changes
+    private static final long BUILD_CACHE_STALE_MILLIS = 60 * 60 * 1000; // of leftovers from killed builds
+
+    // Entry of the running build, null if the build cache is disabled.
+    private static File buildCacheEntry = null;
+    private static boolean buildCacheHit = false;
+
+    // Everything which has an influence on the emitted class files.
+    private static String buildCacheKey() throws IOException {
+        final StringBuilder sb = new StringBuilder(4096);
+        sb.append(BUILD_CACHE_FORMAT).append('\n');
+        if (compiler.equalsIgnoreCase("---")) {
+            sb.append(System.getProperty("java.vendor")).append(' ').append(System.getProperty("java.version"));
+        } else {
+            // Asking it for its version would cost a process start on every build.
+            final File executable = new File(compiler).getAbsoluteFile();
+            sb.append(executable).append(' ').append(executable.length()).append(' ').append(executable.lastModified());
+        }
+        sb.append('\n').append(mode.toLowerCase()).append(' ').append(encoding.toUpperCase()).append('\n');
+
+        // By content, checkouts in other directories (or with other file times) share their entries.
+        final List<String> inputs = new ArrayList<>(sourceFiles.size() + 8);
+        for (final File file : sourceFiles)
+            inputs.add(file.getPath().replace(File.separatorChar, '/') + " " + sha256(Files.readAllBytes(file.toPath())));
+        for (final File file : libraryJars())
+            inputs.add("libs/" + file.getName() + " " + sha256(Files.readAllBytes(file.toPath())));
+        inputs.sort(null);
+        for (final String input : inputs)
+            sb.append(input).append('\n');
+        return sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Entries and their parts have to show up all at once, since other jbp processes might read them any time.
+    private static void publishToBuildCache(final File tmp, final File target) {
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ex) {
+            // Most likely another jbp process was faster, not having it cached is fine as well.
+            try {
+                if (tmp.isDirectory())
+                    deleteDirectory(tmp);
+                else
+                    tmp.delete();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    private static File buildCacheTmp(final File target) {
+        return new File(target.getPath() + ".tmp" + ProcessHandle.current().pid());
+    }
+
+    // Fills 'build/classes' (or the in-memory classes) from the entry of this build. Returns false if there is none.
+    private static boolean restoreClassFiles(final File entry) {
+        final File classes = new File(entry, "classes");
+        if (!classes.isDirectory())
+            return false;
+
+        // Remember when it was used last, that is what we evict by.
+        entry.setLastModified(System.currentTimeMillis());
+        try {
+            if (inMemoryBool) {
+                inMemoryClasses = new TreeMap<>();
+                for (final File file : listAllFiles(classes)) {
+                    if (file.isFile())
+                        inMemoryClasses.put(classes.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/'), Files.readAllBytes(file.toPath()));
+                }
+            } else {
+                mirrorDirectory(classes, new File("build/classes"));
+            }
+            return true;
+        } catch (final IOException ex) {
+            // It got evicted while we were reading it, so we compile after all.
+            inMemoryClasses = null;
+            try {
+                deleteDirectory(new File("build/classes"));
+            } catch (final IOException ignored) {
+            }
+            new File("build/classes").mkdir();
+            return false;
+        }
+    }
+
+    private static void storeClassFiles(final File entry) {
+        final File tmp = buildCacheTmp(entry);
+        final File classes = new File(tmp, "classes");
+        try {
+            if (inMemoryBool) {
+                for (final Map.Entry<String, byte[]> clazz : inMemoryClasses.entrySet()) {
+                    final File file = new File(classes, clazz.getKey());
+                    file.getParentFile().mkdirs();
+                    Files.write(file.toPath(), clazz.getValue());
+                }
+            } else {
+                classes.mkdirs();
+                mirrorDirectory(new File("build/classes"), classes);
+            }
+        } catch (final IOException ex) {
+            try {
+                deleteDirectory(tmp);
+            } catch (final IOException ignored) {
+            }
+            return;
+        }
+        publishToBuildCache(tmp, entry);
+    }
+
+    // Counts hits and misses and evicts the least recently used entries until the cache fits into its budget.
+    // Other jbp processes might do the same at the same time, so this happens under a lock.
+    private static void updateBuildCache(final boolean hit) {
+        final File stats = new File(BUILD_CACHE, "stats");
+        try (final FileChannel channel = FileChannel.open(new File(BUILD_CACHE, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.lock(); // released when the channel gets closed
+            final long[] counts = new long[4]; // hits, misses, evicted entries, evicted bytes
+            if (stats.isFile()) {
+                final String[] values = new String(Files.readAllBytes(stats.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+                for (int i = 0; i < Math.min(values.length, counts.length); ++i)
+                    counts[i] = Long.parseLong(values[i]);
+            }
+            counts[hit ? 0 : 1] += 1;
+
+            final File[] files = BUILD_CACHE.listFiles();
+            final List<File> entries = new ArrayList<>();
+            long size = 0;
+            for (final File file : files == null ? new File[0] : files) {
+                if (file.getName().matches("[0-9a-f]{64}")) {
+                    entries.add(file);
+                    size += directorySize(file.toPath());
+                } else if (file.getName().contains(".tmp") && System.currentTimeMillis() - file.lastModified() > BUILD_CACHE_STALE_MILLIS) {
+                    if (file.isDirectory())
+                        deleteDirectory(file);
+                    else
+                        file.delete();
+                }
+            }
+            entries.sort((lhs, rhs) -> Long.compare(lhs.lastModified(), rhs.lastModified()));
+
+            final long budget = buildCacheSizeMb * 1024L * 1024L;
+            for (int i = 0; i < entries.size() && size > budget; ++i) {
+                final File entry = entries.get(i);
+                if (entry.equals(buildCacheEntry))
+                    continue;
+                final long length = directorySize(entry.toPath());
+                // Moved away first, so nobody starts reading an entry which is half deleted.
+                final File evicted = new File(BUILD_CACHE, entry.getName() + ".tmp" + ProcessHandle.current().pid() + "-evicted");
+                Files.move(entry.toPath(), evicted.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                deleteDirectory(evicted);
+                size -= length;
+                counts[2] += 1;
+                counts[3] += length;
+            }
+
+            final File tmp = buildCacheTmp(stats);
+            Files.write(tmp.toPath(), (counts[0] + " " + counts[1] + " " + counts[2] + " " + counts[3] + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), stats.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException | RuntimeException ex) {
+            stdout("\t-> Failed to update the build cache: " + ex.getMessage());
+        }
+    }
+
+    // The jar phase. The executable of the same class files gets restored from the build cache.
+    private static void createOrRestoreExecutable() {
+        if (buildCacheEntry == null) {
+            createExecutable();
+            return;
+        }
+
+        // Besides the class files (and the libraries, which are part of the entry's key) the manifest and
+        // the way the jar gets written have an influence on the executable.
+        final String key = String.join(" ", entryPoint, packaging.toLowerCase(), String.valueOf(reproducibleBool), String.valueOf(compressionLevel),
+                                       jar, reproducibleBool ? jarEntryTime().toString() : "-");
+        final File cached = new File(buildCacheEntry, sha256(key.getBytes(StandardCharsets.UTF_8)) + ".jar");
+        final File program = new File("build/" + programName);
+        if (cached.isFile()) {
+            stdout("> Building executable...");
+            try {
+                copyFile(cached.toPath(), program.toPath());
+                buildStats.put("jar_bytes", program.length());
+                stdout("\t-> Restored from the build cache.");
+                stdout(String.format("\t-> Size of executable is %.3f %s\n", program.length() / 1024.0f, "kb."));
+                return;
+            } catch (final IOException ex) {
+                stdout("\t-> Failed to restore it from the build cache.");
+            }
+        }
+        createExecutable();
+        final File tmp = buildCacheTmp(cached);
+        try {
+            Files.copy(program.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            publishToBuildCache(tmp, cached);
+        } catch (final IOException ex) {
+            tmp.delete(); // not having it cached is fine
+        }
+    }
+
+    private static void printBuildCacheStats() {
+        final File[] files = BUILD_CACHE.listFiles();
+        if (files == null) {
+            System.out.printf("There is no build cache in '%s' yet. Set 'BuildCacheSize' in your jbp.config to use one.\n", BUILD_CACHE);
+            return;
+        }
+
+        final long[] counts = new long[4];
+        long size = 0, oldest = Long.MAX_VALUE, newest = 0;
+        int entries = 0, jars = 0;
+        try {
+            final File stats = new File(BUILD_CACHE, "stats");
+            if (stats.isFile()) {
+                final String[] values = new String(Files.readAllBytes(stats.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+                for (int i = 0; i < Math.min(values.length, counts.length); ++i)
+                    counts[i] = Long.parseLong(values[i]);
+            }
+            for (final File file : files) {
+                if (!file.getName().matches("[0-9a-f]{64}"))
+                    continue;
+                entries += 1;
+                size += directorySize(file.toPath());
+                oldest = Math.min(oldest, file.lastModified());
+                newest = Math.max(newest, file.lastModified());
+                final File[] executables = file.listFiles((dir, name) -> name.endsWith(".jar"));
+                jars += executables == null ? 0 : executables.length;
+            }
+        } catch (final IOException | RuntimeException ex) {
+            // another jbp process evicted something while we were looking
+            System.out.println("Failed to read the build cache: " + ex.getMessage());
+            return;
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        System.out.printf("Build cache  : %s\n", BUILD_CACHE);
+        System.out.printf("Entries      : %d (%d executables), %.1f mb\n", entries, jars, size / 1024.0 / 1024.0);
+        if (entries > 0)
+            System.out.printf("Last used    : %s (least recently %s)\n", format.format(new Date(newest)), format.format(new Date(oldest)));
+        System.out.printf("Hits         : %d\n", counts[0]);
+        System.out.printf("Misses       : %d\n", counts[1]);
+        if (counts[0] + counts[1] > 0)
+            System.out.printf("Hit rate     : %.1f%%\n", 100.0 * counts[0] / (counts[0] + counts[1]));
+        System.out.printf("Evicted      : %d entries, %.1f mb\n", counts[2], counts[3] / 1024.0 / 1024.0);
+    }
+
+    private static void createClassFiles() {
+        try {
+            stdout(String.format("> Parsing and emitting bytecode instructions (%s)...\n", mode));
+
+            final char classpathSeparator = System.getProperty("os.name").toLowerCase().contains("win") ? ';' : ':';
+            int numberOfClassFiles = 0;
+            int numberOfAnonymousClassFiles = 0;
+
+            final List<File> jars = libraryJars();
+            final StringBuilder classpath = new StringBuilder(128);
+            if (!jars.isEmpty()) {
+                for (final File jar : jars)
+                    classpath.append(jar.getPath()).append(classpathSeparator);
+                // class path must not end with the delimitter
+                assert classpath.toString().charAt(classpath.toString().length() - 1) == classpathSeparator;
+                classpath.deleteCharAt(classpath.toString().length() - 1);
+                assert classpath.toString().charAt(classpath.toString().length() - 1) != classpathSeparator;
+            }
+            final File classes = new File("build/classes");
+            // When compiling in-memory we only need the directory for an external bytecode viewer.
+            if (!inMemoryBool || (byteCodeDetails.equalsIgnoreCase("yes") && !bytecodeViewer.equalsIgnoreCase("---"))) {
+                if (!classes.exists()) {
+                    if (!classes.mkdir()) {
+                        buildFail("\t-> Failed to create classes directory.");
+                        assert false;
+                    }
+                }
+            }
+            Object[] result = null;
+            if (buildCacheSizeMb > 0) {
+                if (!BUILD_CACHE.isDirectory() && !BUILD_CACHE.mkdirs()) {
+                    stdout("\t-> Failed to create the build cache directory.");
+                } else {
+                    buildCacheEntry = new File(BUILD_CACHE, buildCacheKey());
+                    buildCacheHit = restoreClassFiles(buildCacheEntry);
+                    if (buildCacheHit) {
+                        stdout("\t-> Restored the class files from the build cache.");
+                        result = new Object[] {"", 0};
+                    }
+                }
+            }
+
+            // For now we print a maximum number of 5 errors (-Xmaxerrs 5)
+            // We also disable warning (-nowarn) because they are hardly every useful (execpt deprecated warnings)
+
+            // TODO(nschultz): We only get warnings about deprecation displayed iff also at the same time
+            // encounter an (or multiple) compilation errors. Otherwise warnings will not get shown
+            // to the user. This is not what we want, I think.
+            if (result == null) {
+                String debugFlag = null;
+                if (mode.equalsIgnoreCase("debug")) {
+                    debugFlag = "-g";
+                } else if (mode.equalsIgnoreCase("release")) {
+                    debugFlag = "-g:none";
+                } else {
+                    assert false;
+                }
+                if (inMemoryBool || incrementalBool) {
+                    final List<String> options = new ArrayList<>(16);
+                    options.add("-Xdiags:verbose");
+                    options.add("-Xlint:deprecation");
+                    options.add("-Xmaxerrs");
+                    options.add("5");
+                    options.add("-nowarn");
+                    options.add(debugFlag);
+                    options.add("-encoding");
+                    options.add(encoding);
+                    if (incrementalBool) {
+                        result = compileIncrementally(options, classpath.toString(), classpathSeparator, false);
+                    } else {
+                        if (!classpath.toString().isEmpty()) {
+                            options.add("-classpath");
+                            options.add(classpath.toString());
+                        }
+                        inMemoryClasses = new TreeMap<>();
+                        result = compileInMemory(sourceFiles, options, inMemoryClasses, null);
+                    }
+                } else {
+                    if (!compiler.equalsIgnoreCase("---") && !new File(compiler).exists()) {
+                        buildFail("\t-> Specified compiler executable does not exist.");
+                        assert false;
+                    }
+                    final List<String> args = new ArrayList<>(16);
+                    if (!classpath.toString().isEmpty()) { // we have libraries; need to specify classpath now
+                        args.add("-classpath");
+                        args.add(classpath.toString());
+                    }
+                    args.add("@sources.txt");
+                    args.add("-Xdiags:verbose");
+                    args.add("-Xlint:deprecation");
+                    args.add("-Xmaxerrs");
+                    args.add("5");
+                    args.add("-nowarn");
+                    args.add(debugFlag);
+                    args.add("-d");
+                    args.add("build/classes");
+                    args.add("-encoding");
+                    args.add(encoding);
+                    result = runTool("javac", compiler, args.toArray(new String[0]));
+                }
+            }
+            assert result != null;
+
+            if (((int) result[1]) != 0) {
+                stdout("\t-> COMPILATION ERROR");
+                stdout(null);
+                buildFail("############################\nERRORS\n\n" + result[0] + "\n############################");
+                assert false;
+            } else if (inMemoryBool) {
+                for (final Map.Entry<String, byte[]> entry : inMemoryClasses.entrySet()) {
+                    if (entry.getKey().contains("$"))
+                        numberOfAnonymousClassFiles += 1;
+                    else
+                        numberOfClassFiles += 1;
+
+                    if (byteCodeDetails.equalsIgnoreCase("yes") && !bytecodeViewer.equalsIgnoreCase("---")) {
+                        // javap can only read class files from disk
+                        final File classFile = new File(classes, entry.getKey());
+                        classFile.getParentFile().mkdirs();
+                        Files.write(classFile.toPath(), entry.getValue());
+                    }
+                }
+
+                buildStats.put("class_files", (long) numberOfClassFiles + numberOfAnonymousClassFiles);
+                stdout(String.format("\t-> Created %d class files (in-memory).\n", numberOfClassFiles));
+                stdout(String.format("\t-> Created %d anonymous class files.\n", numberOfAnonymousClassFiles));
+            } else {
+                try {
+                    final File[] classFiles = listAllFiles(new File("build/classes"));
+                    for (final File file : classFiles) {
+                        if (!file.getName().endsWith(".class"))
+                            continue;
+
+                        if (file.getName().contains("$"))
+                            numberOfAnonymousClassFiles += 1;
+                        else
+                            numberOfClassFiles += 1;
+                        if (!incrementalBool && !buildCacheHit) // mirroring already counted those
+                            traceWritten(file.length());
+                    }
+                } catch (final IOException ex) {
+                    buildFail("\t-> Failed to count class files.");
+                    assert false;
+                }
+
+                buildStats.put("class_files", (long) numberOfClassFiles + numberOfAnonymousClassFiles);
+                stdout(String.format("\t-> Created %d class files.\n", numberOfClassFiles));
+                stdout(String.format("\t-> Created %d anonymous class files.\n", numberOfAnonymousClassFiles));
+            }
+            if (buildCacheEntry != null) {
+                if (!buildCacheHit)
+                    storeClassFiles(buildCacheEntry);
+                updateBuildCache(buildCacheHit);
+            }
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to emit bytecode.");
+            assert false;
+        }
+    }
+
+    private static final File JAVADOC_CACHE = new File(".jbp/javadoc-cache");
+
+    // What javadoc shows of one package. 'structure' covers everything which can also show up on the pages of other
+    // packages or on the shared pages (types, signatures and the first sentence of doc comments), 'docs' the full comments.
+    private static final class PackageApi {
+        final StringBuilder structure = new StringBuilder(1024);
+        final StringBuilder docs = new StringBuilder(1024);
+        final List<File> files = new ArrayList<>();
+        final Set<String> types = new TreeSet<>();      // simple names of the declared types
+        final Set<String> supertypes = new TreeSet<>(); // simple names of the types they extend or implement
+    }
+
+    // Collects the parts of a source file javadoc cares about. Method bodies, initializers and private members get skipped,
+    // so changing them does not invalidate the documentation.
+    private static final class ApiScanner extends com.sun.source.util.TreePathScanner<Void, Void> {
+
+        private final com.sun.source.util.DocTrees trees;
+        private final PackageApi api;
+
+        ApiScanner(final com.sun.source.util.DocTrees trees, final PackageApi api) {
+            assert trees != null;
+            assert api != null;
+            this.trees = trees;
+            this.api = api;
+        }
+
+        private static boolean isPrivate(final com.sun.source.tree.ModifiersTree modifiers) {
+            return modifiers.getFlags().contains(javax.lang.model.element.Modifier.PRIVATE);
+        }
+
+        private static String simpleName(final com.sun.source.tree.Tree type) {
+            String name = type.toString();
+            if (name.indexOf('<') != -1)
+                name = name.substring(0, name.indexOf('<'));
+            return name.substring(name.lastIndexOf('.') + 1).strip();
+        }
+
+        private void comment() {
+            final com.sun.source.doctree.DocCommentTree comment = trees.getDocCommentTree(getCurrentPath());
+            if (comment == null)
+                return;
+            api.structure.append(" /** ").append(comment.getFirstSentence()).append(" */");
+            api.docs.append(comment).append('\n');
+        }
+
+        @Override
+        public Void visitCompilationUnit(final com.sun.source.tree.CompilationUnitTree node, final Void p) {
+            if (node.getPackage() != null) {
+                // package-info.java, the package comment also shows up on the overview page
+                api.structure.append("package ").append(node.getPackageName());
+                final com.sun.source.util.TreePath path = new com.sun.source.util.TreePath(getCurrentPath(), node.getPackage());
+                final com.sun.source.doctree.DocCommentTree comment = trees.getDocCommentTree(path);
+                if (comment != null) {
+                    api.structure.append(" /** ").append(comment.getFirstSentence()).append(" */");
+                    api.docs.append(comment).append('\n');
+                }
+                api.structure.append('\n');
+            }
+            return scan(node.getTypeDecls(), p);
+        }
+
+        @Override
+        public Void visitClass(final com.sun.source.tree.ClassTree node, final Void p) {
+            if (isPrivate(node.getModifiers()))
+                return null;
+            api.structure.append(node.getModifiers()).append(node.getKind()).append(' ').append(node.getSimpleName()).append(node.getTypeParameters());
+            api.types.add(node.getSimpleName().toString());
+            if (node.getExtendsClause() != null) {
+                api.structure.append(" extends ").append(node.getExtendsClause());
+                api.supertypes.add(simpleName(node.getExtendsClause()));
+            }
+            for (final com.sun.source.tree.Tree type : node.getImplementsClause()) {
+                api.structure.append(" implements ").append(type);
+                api.supertypes.add(simpleName(type));
+            }
+            comment();
+            api.structure.append(" {\n");
+            scan(node.getMembers(), p);
+            api.structure.append("}\n");
+            return null;
+        }
+
+        @Override
+        public Void visitMethod(final com.sun.source.tree.MethodTree node, final Void p) {
+            if (isPrivate(node.getModifiers()))
+                return null;
+            api.structure.append(node.getModifiers()).append(node.getTypeParameters()).append(' ').append(node.getReturnType()).append(' ').append(node.getName())
+                         .append(node.getParameters()).append(" throws ").append(node.getThrows()).append(" default ").append(node.getDefaultValue());
+            comment();
+            api.structure.append('\n');
+            return null;
+        }
+
+        @Override
+        public Void visitVariable(final com.sun.source.tree.VariableTree node, final Void p) {
+            if (isPrivate(node.getModifiers()))
+                return null;
+            api.structure.append(node.getModifiers()).append(node.getType()).append(' ').append(node.getName());
+            final Set<javax.lang.model.element.Modifier> flags = node.getModifiers().getFlags();
+            // javadoc lists the values of constants
+            if (flags.contains(javax.lang.model.element.Modifier.STATIC) && flags.contains(javax.lang.model.element.Modifier.FINAL) && node.getInitializer() != null)
+                api.structure.append(" = ").append(node.getInitializer());
+            comment();
+            api.structure.append('\n');
+            return null;
+        }
+
+        @Override
+        public Void visitBlock(final com.sun.source.tree.BlockTree node, final Void p) {
+            return null; // initializer blocks
+        }
+    }
+
+    // Parses every source file and returns its package's API, by package name. Returns null if that is not possible
+    // (no compiler in the JVM or the sources do not parse), in which case the documentation has to be generated from scratch.
+    private static Map<String, PackageApi> readPackageApis() {
+        final JavaCompiler javac = javax.tools.ToolProvider.getSystemJavaCompiler();
+        if (javac == null)
+            return null;
+
+        final Span span = span("tool", "javadoc fingerprint");
+        try (final StandardJavaFileManager fileManager = javac.getStandardFileManager(null, null, java.nio.charset.Charset.forName(encoding))) {
+            final List<File> files = new ArrayList<>();
+            for (final File file : sourceFiles) {
+                if (!file.getName().equals("module-info.java"))
+                    files.add(file);
+            }
+            final StringWriter output = new StringWriter();
+            final com.sun.source.util.JavacTask task = (com.sun.source.util.JavacTask) javac.getTask(output, fileManager, d -> {}, List.of("-proc:none"), null, fileManager.getJavaFileObjectsFromFiles(files));
+            final com.sun.source.util.DocTrees trees = com.sun.source.util.DocTrees.instance(task);
+            final Map<String, PackageApi> apis = new TreeMap<>();
+            for (final com.sun.source.tree.CompilationUnitTree unit : task.parse()) {
+                final String packageName = unit.getPackageName() == null ? "" : unit.getPackageName().toString();
+                final PackageApi api = apis.computeIfAbsent(packageName, k -> new PackageApi());
+                api.files.add(new File(unit.getSourceFile().toUri()));
+                new ApiScanner(trees, api).scan(unit, null);
+            }
+            return apis;
+        } catch (final IOException | RuntimeException ex) {
+            return null;
+        } finally {
+            span.close();
+        }
+    }
+
+    // Hard links (or copies) every file below 'from' into 'to'.
+    private static void linkDirectory(final Path from, final Path to) throws IOException {
+        final List<Path> files;
+        try (final Stream<Path> stream = Files.walk(from)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        try {
+            files.parallelStream().forEach(file -> {
+                try {
+                    syncFile(file, to.resolve(from.relativize(file)), true);
+                } catch (final IOException ex) {
+                    throw new java.io.UncheckedIOException(ex);
+                }
+            });
+        } catch (final java.io.UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    // Runs javadoc, either for the whole project or (when 'files' is not null) for the given files only,
+    // linking to the previous documentation for everything else.
+    private static void runJavadoc(final File output, final List<File> files) throws IOException {
+        final List<String> args = new ArrayList<>();
+        if (files == null) {
+            args.add("@sources.txt");
+        } else {
+            final StringBuilder sb = new StringBuilder();
+            for (final File file : files)
+                sb.append('"').append(file.getAbsolutePath().replace("\\", "\\\\")).append('"').append(System.lineSeparator());
+            writeToFile("build/javadoc-sources.txt", sb.toString());
+            args.add("@build/javadoc-sources.txt");
+            args.add("-sourcepath");
+            args.add("src");
+            // A relative link makes javadoc point to the other packages as if they had been generated in the same run.
+            args.add("-linkoffline");
+            args.add(".");
+            args.add(new File(JAVADOC_CACHE, "documentation").getAbsolutePath());
+        }
+        args.add("-d");
+        args.add(output.getPath());
+
+        final Object[] result = runTool("javadoc", javadoc, args.toArray(new String[0]));
+        assert result != null;
+        if (((int) result[1]) != 0) {
+            stdout(result[0].toString());
+            buildFail("\t-> Failed to generate documentation.");
+            assert false;
+        }
+    }
+
+    private static void generateDocumentation() {
+        stdout("> Generating JavaDoc for your project...");
+        final File javadocDir = new File("build/documentation");
+        if (!javadocDir.exists()) {
+            if (!javadocDir.mkdir()) {
+                buildFail("\t-> Failed to create javadoc directory.");
+                assert false;
+            }
+        }
+        try {
+            if (!javadoc.equalsIgnoreCase("---") && !new File(javadoc).exists()) {
+                buildFail("\t-> Specified javadoc executable does not exist.");
+                assert false;
+            }
+
+            // Everything besides the sources that goes into the documentation.
+            final String key = sha256((javadoc + " " + System.getProperty("java.version") + " " + encoding).getBytes(StandardCharsets.UTF_8));
+            final Map<String, PackageApi> apis = readPackageApis();
+            final Map<String, String[]> hashes = new TreeMap<>(); // package -> structure and docs hash
+            if (apis != null) {
+                for (final Map.Entry<String, PackageApi> api : apis.entrySet()) {
+                    hashes.put(api.getKey(), new String[] {sha256(api.getValue().structure.toString().getBytes(StandardCharsets.UTF_8)),
+                                                           sha256(api.getValue().docs.toString().getBytes(StandardCharsets.UTF_8))});
+                }
+            }
+
+            final File stateFile = new File(JAVADOC_CACHE, "state.txt");
+            final File cachedDocs = new File(JAVADOC_CACHE, "documentation");
+            final Map<String, String[]> previous = new TreeMap<>();
+            String previousKey = null;
+            if (apis != null && stateFile.exists() && cachedDocs.isDirectory()) {
+                for (final String line : Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8)) {
+                    final String[] parts = line.split(" ", -1);
+                    if (parts[0].equals("key") && parts.length == 2)
+                        previousKey = parts[1];
+                    else if (parts[0].equals("package") && parts.length == 4)
+                        previous.put(parts[3], new String[] {parts[1], parts[2]});
+                }
+            }
+
+            // Only doc comments of whole packages may change for a partial run, anything else (new types, changed
+            // signatures, different first sentences) also changes the pages of other packages.
+            final List<String> changed = new ArrayList<>();
+            boolean full = apis == null || !key.equals(previousKey) || !previous.keySet().equals(hashes.keySet());
+            if (!full) {
+                for (final Map.Entry<String, String[]> hash : hashes.entrySet()) {
+                    final String[] before = previous.get(hash.getKey());
+                    if (!before[0].equals(hash.getValue()[0]))
+                        full = true;
+                    else if (!before[1].equals(hash.getValue()[1]))
+                        changed.add(hash.getKey());
+                }
+            }
+            if (!full && !changed.isEmpty()) {
+                // Pages of types list their subtypes, so the subtypes have to be inside of the regenerated packages as well.
+                final Set<String> changedTypes = new HashSet<>();
+                for (final String name : changed)
+                    changedTypes.addAll(apis.get(name).types);
+                for (final Map.Entry<String, PackageApi> api : apis.entrySet()) {
+                    if (changed.contains(api.getKey()))
+                        continue;
+                    for (final String supertype : api.getValue().supertypes) {
+                        if (changedTypes.contains(supertype))
+                            full = true;
+                    }
+                }
+                // javadoc leaves out the overview when it only documents one package.
+                if (changed.size() == 1 && apis.size() > 1) {
+                    String smallest = null;
+                    for (final Map.Entry<String, PackageApi> api : apis.entrySet()) {
+                        if (!changed.contains(api.getKey()) && (smallest == null || api.getValue().files.size() < apis.get(smallest).files.size()))
+                            smallest = api.getKey();
+                    }
+                    changed.add(smallest);
+                }
+            }
+
+            final Path documentation = javadocDir.toPath();
+            if (full) {
+                runJavadoc(javadocDir, null);
+                stdout("\t-> Documentation generated.");
+            } else if (changed.isEmpty()) {
+                linkDirectory(cachedDocs.toPath(), documentation);
+                stdout("\t-> Public API and doc comments did not change, reused the previous documentation.");
+            } else {
+                final List<File> files = new ArrayList<>();
+                for (final String name : changed)
+                    files.addAll(apis.get(name).files);
+                final File partial = new File("build/documentation-partial");
+                deleteDirectory(partial);
+                runJavadoc(partial, files);
+
+                linkDirectory(cachedDocs.toPath(), documentation);
+                for (final String name : changed) {
+                    final Path dir = Paths.get(name.isEmpty() ? "." : name.replace('.', File.separatorChar));
+                    // Only the files directly inside of a package directory belong to it, sub directories are other packages.
+                    try (final Stream<Path> stream = Files.list(partial.toPath().resolve(dir))) {
+                        for (final Path file : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator)
+                            Files.move(file, documentation.resolve(dir).resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                deleteDirectory(partial);
+                new File("build/javadoc-sources.txt").delete();
+                stdout(String.format("\t-> Documentation regenerated for %d of %d packages (doc comments changed).\n", changed.size(), apis.size()));
+            }
+
+            // Remember what the documentation has been generated from.
+            if (apis != null && (full || !changed.isEmpty())) {
+                deleteDirectory(cachedDocs);
+                linkDirectory(documentation, cachedDocs.toPath());
+                final StringBuilder state = new StringBuilder();
+                state.append("key ").append(key).append('\n');
+                for (final Map.Entry<String, String[]> hash : hashes.entrySet())
+                    state.append("package ").append(hash.getValue()[0]).append(' ').append(hash.getValue()[1]).append(' ').append(hash.getKey()).append('\n');
+                writeToFile(stateFile.getPath(), state.toString());
+            }
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to generate documentation.");
+            assert false;
+        }
+    }
+
+    private static final byte[] MAIN_SIGNATURE = "public static void main(".getBytes(StandardCharsets.US_ASCII);
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    // One buffer per scanning thread so memory stays bounded no matter how many (or how large) files there are.
+    private static final ThreadLocal<ByteBuffer> scanBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(SCAN_BUFFER_SIZE));
+
+    // Counts the lines of a source file and checks whether it contains a main method in a single pass over its bytes.
+    // Returns the number of lines, negated and minus one if the file contains a main method.
+    // Lines are counted like 'content.split("\n").length' always did, so trailing empty lines are left out.
+    private static int scanSourceFile(final File file, final java.util.concurrent.atomic.LongAdder bytesRead) throws IOException {
+        final ByteBuffer buffer = scanBuffers.get();
+        int newlines = 0;
+        int lines = 0; // up to the last line which is not empty
+        long size = 0;
+        int matched = 0; // how many bytes of MAIN_SIGNATURE we have seen in a row
+        boolean hasMain = false;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                final int readBytes = channel.read(buffer);
+                if (readBytes == -1)
+                    break;
+                bytesRead.add(readBytes);
+                size += readBytes;
+                for (int i = 0, l = buffer.position(); i < l; ++i) {
+                    final byte b = buffer.get(i);
+                    if (b == '\n')
+                        newlines += 1;
+                    else
+                        lines = newlines + 1;
+                    if (!hasMain) {
+                        // 'p' only occurs at the start of the signature, so on a mismatch we never have to go back further.
+                        if (b == MAIN_SIGNATURE[matched])
+                            matched += 1;
+                        else
+                            matched = b == MAIN_SIGNATURE[0] ? 1 : 0;
+                        if (matched == MAIN_SIGNATURE.length)
+                            hasMain = true;
+                    }
+                }
+            }
+        }
+        if (size == 0)
+            lines = 1; // split() returns the empty string itself
+        return hasMain ? -lines - 1 : lines;
+    }
+
+    // Scans the given files in parallel, see scanSourceFile().
+    private static int[] scanSourceFiles(final File[] javaFiles) throws IOException {
+        final int[] scans = new int[javaFiles.length];
+        final boolean[] failed = new boolean[1];
+        final java.util.concurrent.atomic.LongAdder bytesRead = new java.util.concurrent.atomic.LongAdder();
+        IntStream.range(0, javaFiles.length).parallel().forEach(i -> {
+            try {
+                scans[i] = scanSourceFile(javaFiles[i], bytesRead);
+            } catch (final IOException ex) {
+                failed[0] = true;
+            }
+        });
+        traceRead(bytesRead.sum());
+        if (failed[0])
+            throw new IOException("Failed to read the source files.");
+        return scans;
+    }
+
+    private static void analyzeSourceTree() {
+        stdout("> Analyzing your source tree...");
+        final File src = new File("src");
+        if (!src.exists()) {
+            buildFail("\t-> No src directory found. Please create one.");
+            assert false;
+        }
+
+        int sourceFileCounter = 0;
+        int loc = 0;
+        int numberOfEntryPoints = 0;
+
+        File[] files = null;
+        try {
+            files = listAllFiles(src);
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to analyze your source tree.");
+            assert false;
+        }
+        assert files != null;
+
+        final File[] javaFiles = Arrays.stream(files).filter(f -> f.getName().endsWith(".java")).toArray(File[]::new);
+        int[] scans = null;
+        try {
+            scans = scanSourceFiles(javaFiles);
+        } catch (final IOException ex) {
+            buildFail("\t-> Failed to read your source files.");
+            assert false;
+        }
+        assert scans != null;
+
+        final boolean findEntryPoint = entryPoint == null;
+        final StringBuilder sbuffer = new StringBuilder();
+        for (int i = 0, l = javaFiles.length; i < l; ++i) {
+            final File file = javaFiles[i];
+            sbuffer.append(file.getAbsolutePath()).append(System.lineSeparator());
+            sourceFiles.add(file);
+            sourceFileCounter += 1;
+
+            final boolean hasMain = scans[i] < 0;
+            loc += hasMain ? -scans[i] - 1 : scans[i];
+            if (findEntryPoint && hasMain) {
+                // files are sorted, so the first main we see is the same on every build
+                if (entryPoint == null)
+                    entryPoint = file.getName().split("\\.")[0];
+                numberOfEntryPoints += 1;
+            }
+        }
+
+        // The in-memory compiler gets handed the files directly, only javac and javadoc need the argument file.
+        if ((!inMemoryBool && !incrementalBool) || doc.equalsIgnoreCase("yes"))
+            writeToFile("sources.txt", sbuffer.toString());
+        buildStats.put("source_files", (long) sourceFileCounter);
+        buildStats.put("loc", (long) loc);
+        if (!simpleOutputBool) {
+            stdout(String.format("\t-> Total of %d source files found.\n", sourceFileCounter));
+            stdout(String.format("\t-> Total lines of code are %d (including whitespaces and comments).\n", loc));
+        }
+        if (entryPoint != null) {
+            assert !findEntryPoint || numberOfEntryPoints >= 1;
+            stdout(String.format("\t-> Entry point is '%s'.\n", entryPoint));
+            if (numberOfEntryPoints > 1) {
+                stdout("\t-> Note that there are more than one entry point in your program.\n");
+            }
+        } else {
+            // this is fine because we could have a library which normally does not have an entry point
+            stdout("\t-> No entry point found.\n");
+            entryPoint = "--NoMainFound--";
+        }
+    }
+
+    private static void cleanBuildDirectory() {
+        final File cwd = new File("build");
+        if (!cwd.exists()) {
+            stdout("> Creating build directory...");
+            if (cwd.mkdir()) {
+                stdout("\t-> Creation successfully.");
+            } else {
+                buildFail("\t-> Failed to create build directory.");
+                assert false;
+            }
+        } else {
+            stdout("> Cleaning build directory...");
+
+            int deletionCounter = 0;
+
+            File[] files = null;
+            try {
+                files = listAllFiles(cwd);
+            } catch (final IOException ex) {
+                buildFail("\t-> Failed to clean the build directory.");
+                assert false;
+            }
+            assert files != null;
+
+            // Libraries and resources of the release get synced instead, so unchanged ones do not have to be copied again,
+            // and the runtime image only gets linked again if needed. Everything else of the release (the executable, the
+            // class data sharing archive and the launchers) goes, a failed build must not leave a runnable old release behind.
+            final Path release = Paths.get("build", "release");
+            final Path runtimeImage = runtime.equalsIgnoreCase("jlink") ? release.resolve("runtime") : null;
+            for (int i = 0, l = files.length; i < l; ++i) {
+                final File file = files[i];
+                final Path path = file.toPath();
+                if (path.startsWith(release.resolve("libs")) || path.startsWith(release.resolve("res")) || (runtimeImage != null && path.startsWith(runtimeImage)))
+                    continue;
+                if (keepDocumentation && path.startsWith(Paths.get("build", "documentation")))
+                    continue;
+                if (file.delete())
+                    deletionCounter += 1;
+            }
+
+            // TODO(nschultz): Lets delete every directory (except build itself) aswell.
+
+            if (deletionCounter == 0)
+                stdout("\t-> Nothing to delete.");
+            else
+                stdout(String.format("\t-> Deleted %d files.\n", deletionCounter));
+        }
+    }
+
+    private static Map<String, String> readConfigFile(final File configFile) {
+        assert configFile != null;
+
+        final StringBuilder config = new StringBuilder();
+        readFileIntoMemory(config, configFile);
+        final String[] configLines = config.toString().split("\n");
+        final Map<String, String> configMap = new LinkedHashMap<>();
+        for (final String configLine : configLines) {
+            if (configLine.strip().isEmpty())
+                continue;
+
+            final String[] entry = configLine.strip().split("=");
+            if (entry.length != 2) {
+                buildFail("Invalid config file entry."); // TODO(nschultz): Improve error message
+                assert false;
+            }
+
+            final String lhs = entry[0].strip();
+            final String rhs = entry[1].strip();
+            configMap.put(lhs, rhs);
+        }
+        return configMap;
+    }
+
+    // Project directories listed by 'Depends' in the given config, relative to the directory of the config file.
+    private static List<File> dependencies(final Map<String, String> configMap, final File projectDir) {
+        final List<File> result = new ArrayList<>();
+        final String value = configMap.get("Depends");
+        if (value == null || value.equals("---"))
+            return result;
+        for (final String dir : value.split(",")) {
+            if (dir.isBlank())
+                continue;
+            final File dependency = new File(projectDir, dir.strip());
+            try {
+                result.add(dependency.getCanonicalFile());
+            } catch (final IOException ex) {
+                result.add(dependency.getAbsoluteFile());
+            }
+        }
+        return result;
+    }
+
+    // The executable jar a project directory builds, read from its jbp.config.
+    private static File releaseJarOf(final File projectDir) {
+        final File config = new File(projectDir, "jbp.config");
+        String name = config.exists() ? readConfigFile(config).get("ProgramName") : null;
+        if (name == null)
+            name = "Program.jar";
+        return new File(projectDir, "build/release/" + name);
+    }
+
+    // Every jar the program needs: the ones inside of 'libs' and the jars of the projects we depend on (including their libraries).
+    // They all end up in 'libs' of the release, so their names have to be unique.
+    private static List<File> libraryJars() {
+        final Map<String, File> jars = new TreeMap<>();
+        final File libs = new File("libs");
+        if (libs.isDirectory()) {
+            for (final File jar : libs.listFiles()) {
+                if (jar.isFile())
+                    jars.put(jar.getName(), jar);
+            }
+        }
+        for (final File dependency : dependencyDirs) {
+            final File jar = releaseJarOf(dependency);
+            if (!jar.isFile()) {
+                buildFail(String.format("\t-> Dependency '%s' has not been built yet ('%s' is missing). Build it first or use 'java jbp --workspace'.", dependency, jar));
+                assert false;
+            }
+            final List<File> candidates = new ArrayList<>();
+            candidates.add(jar);
+            final File[] transitive = new File(jar.getParentFile(), "libs").listFiles();
+            if (transitive != null) {
+                Arrays.sort(transitive);
+                candidates.addAll(Arrays.asList(transitive));
+            }
+            for (final File candidate : candidates) {
+                final File existing = jars.putIfAbsent(candidate.getName(), candidate);
+                if (existing != null && !(existing.length() == candidate.length() && existing.lastModified() == candidate.lastModified())) {
+                    buildFail(String.format("\t-> '%s' and '%s' have the same name. Give one of the projects a different 'ProgramName'.", existing, candidate));
+                    assert false;
+                }
+            }
+        }
+        return new ArrayList<>(jars.values());
+    }
+
+    private static void loadConfiguration() {
+        // A daemon builds more than once inside of the same JVM, so always start from scratch.
+        programName = entryPoint = mode = encoding = doc = byteCodeDetails = runAfterBuild = simpleOutput = log = null;
+        compiler = bytecodeViewer = jvm = jar = javadoc = inMemory = incremental = bytecodeCache = trace = packaging = reproducible = compression = classDataSharing = null;
+        runtime = jlink = jdeps = profile = benchThreshold = buildCacheSize = null;
+        sourceFiles.clear();
+        dependencyDirs.clear();
+        inMemoryClasses = null;
+        buildCacheEntry = null;
+        buildCacheHit = false;
+
+        final File configFile = new File("jbp.config");
+        if (configFile.exists()) {
+            final Map<String, String> configMap = readConfigFile(configFile);
+
+            programName = configMap.get("ProgramName");
+            entryPoint = configMap.get("EntryPoint");
+            mode = configMap.get("Mode");
+            if (mode != null) { // null would have been fine
+                if (!mode.equalsIgnoreCase("debug") && !mode.equalsIgnoreCase("release")) {
+                    buildFail("Mode can only be set to 'debug' or 'release'.");
+                    assert false;
+                }
+            }
+            encoding = configMap.get("Encoding");
+
+            doc = configMap.get("Documentation");
+            if (doc != null) { // null would have been fine
+                if (!doc.equalsIgnoreCase("yes") && !doc.equalsIgnoreCase("no")) {
+                    buildFail("Documentation can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            byteCodeDetails = configMap.get("ByteCodeDetails");
+            if (byteCodeDetails != null) { // null would have been fine
+                if (!byteCodeDetails.equalsIgnoreCase("yes") && !byteCodeDetails.equalsIgnoreCase("no")) {
+                    buildFail("ByteCodeDetails can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            runAfterBuild = configMap.get("RunAfterBuild");
+            if (runAfterBuild != null) { // null would have been fine
+                if (!runAfterBuild.equalsIgnoreCase("yes") && !runAfterBuild.equalsIgnoreCase("no")) {
+                    buildFail("RunAfterBuild can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            simpleOutput = configMap.get("SimpleOutput");
+            if (simpleOutput != null) { // null would have been fine
+                if (!simpleOutput.equalsIgnoreCase("yes") && !simpleOutput.equalsIgnoreCase("no")) {
+                    buildFail("SimpleOutput can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            log = configMap.get("Log");
+            if (log != null) { // null would have been fine
+                if (!log.equalsIgnoreCase("yes") && !log.equalsIgnoreCase("no")) {
+                    buildFail("Log can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            compiler = configMap.get("Compiler");
+            bytecodeViewer = configMap.get("Bytecodeviewer");
+            jvm = configMap.get("JVM");
+            jar = configMap.get("Jar");
+            javadoc = configMap.get("Javadoc");
+            incremental = configMap.get("Incremental");
+            if (incremental != null) { // null would have been fine
+                if (!incremental.equalsIgnoreCase("yes") && !incremental.equalsIgnoreCase("no")) {
+                    buildFail("Incremental can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            bytecodeCache = configMap.get("BytecodeCacheSize");
+            if (bytecodeCache != null) { // null would have been fine
+                if (!bytecodeCache.matches("[0-9]+")) {
+                    buildFail("BytecodeCacheSize has to be the size of the cache in megabytes (0 disables it).");
+                    assert false;
+                }
+            }
+            inMemory = configMap.get("InMemory");
+            if (inMemory != null) { // null would have been fine
+                if (!inMemory.equalsIgnoreCase("yes") && !inMemory.equalsIgnoreCase("no")) {
+                    buildFail("InMemory can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            dependencyDirs.addAll(dependencies(configMap, new File("").getAbsoluteFile()));
+            for (final File dependency : dependencyDirs) {
+                if (!dependency.isDirectory()) {
+                    buildFail(String.format("Dependency '%s' is not a directory.", dependency));
+                    assert false;
+                }
+            }
+            trace = configMap.get("Trace");
+            if (trace != null) { // null would have been fine
+                if (!trace.equalsIgnoreCase("yes") && !trace.equalsIgnoreCase("no")) {
+                    buildFail("Trace can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            packaging = configMap.get("Packaging");
+            if (packaging != null) { // null would have been fine
+                if (!packaging.equalsIgnoreCase("thin") && !packaging.equalsIgnoreCase("fat")) {
+                    buildFail("Packaging can only be set to 'thin' or 'fat'.");
+                    assert false;
+                }
+            }
+            reproducible = configMap.get("Reproducible");
+            if (reproducible != null) { // null would have been fine
+                if (!reproducible.equalsIgnoreCase("yes") && !reproducible.equalsIgnoreCase("no")) {
+                    buildFail("Reproducible can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            compression = configMap.get("Compression");
+            if (compression != null) { // null would have been fine
+                if (!compression.equalsIgnoreCase("default") && !compression.equalsIgnoreCase("stored") && !compression.matches("[1-9]")) {
+                    buildFail("Compression can only be set to 'default', 'stored' or a level from 1 (fastest) to 9 (smallest).");
+                    assert false;
+                }
+            }
+            classDataSharing = configMap.get("ClassDataSharing");
+            if (classDataSharing != null) { // null would have been fine
+                if (!classDataSharing.equalsIgnoreCase("yes") && !classDataSharing.equalsIgnoreCase("no")) {
+                    buildFail("ClassDataSharing can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            runtime = configMap.get("Runtime");
+            if (runtime != null) { // null would have been fine
+                if (!runtime.equalsIgnoreCase("jdk") && !runtime.equalsIgnoreCase("jlink")) {
+                    buildFail("Runtime can only be set to 'jdk' or 'jlink'.");
+                    assert false;
+                }
+            }
+            jlink = configMap.get("Jlink");
+            benchThreshold = configMap.get("BenchThreshold");
+            if (benchThreshold != null) { // null would have been fine
+                if (!benchThreshold.matches("[0-9]+")) {
+                    buildFail("BenchThreshold has to be a percentage (e.g. 10).");
+                    assert false;
+                }
+            }
+            profile = configMap.get("Profile");
+            if (profile != null) { // null would have been fine
+                if (!profile.equalsIgnoreCase("yes") && !profile.equalsIgnoreCase("no")) {
+                    buildFail("Profile can only be set to 'yes' or 'no'.");
+                    assert false;
+                }
+            }
+            jdeps = configMap.get("Jdeps");
+            buildCacheSize = configMap.get("BuildCacheSize");
+            if (buildCacheSize != null) { // null would have been fine
+                if (!buildCacheSize.matches("[0-9]+")) {
+                    buildFail("BuildCacheSize has to be the size of the cache in megabytes (0 disables it).");
+                    assert false;
+                }
+            }
+        }
+
+        // handle values which have not been set yet
+        programName = programName == null ? "Program.jar" : programName;
+        entryPoint = entryPoint == null || entryPoint.equalsIgnoreCase("---") ? null : entryPoint; // if null will get set when analyzing the source tree
+        mode = mode == null ? "debug" : mode;
+        encoding = encoding == null ? "UTF-8" : encoding;
+        doc = doc == null ? "no" : doc;
+        byteCodeDetails = byteCodeDetails == null ? "yes" : byteCodeDetails;
+        runAfterBuild = runAfterBuild == null ? "no" : runAfterBuild;
+        simpleOutput = simpleOutput == null ? "no" : simpleOutput;
+        log = log == null ? "no" : log;
+        compiler = compiler == null || compiler.equalsIgnoreCase("---") ? null : compiler;
+        if (compiler == null)
+            compiler = "---";
+        bytecodeViewer = bytecodeViewer == null || bytecodeViewer.equalsIgnoreCase("---") ? null : bytecodeViewer;
+        if (bytecodeViewer == null)
+            bytecodeViewer = "---";
+        jvm = jvm == null || jvm.equalsIgnoreCase("---") ? null : jvm;
+        if (jvm == null)
+            jvm = "---";
+        jar = jar == null || jar.equalsIgnoreCase("---") ? null : jar;
+        if (jar == null)
+            jar = "---";
+        javadoc = javadoc == null || javadoc.equalsIgnoreCase("---") ? null : javadoc;
+        if (javadoc == null)
+            javadoc = "---";
+
+        inMemory = inMemory == null ? "no" : inMemory;
+        incremental = incremental == null ? "no" : incremental;
+        bytecodeCache = bytecodeCache == null ? "64" : bytecodeCache;
+        trace = trace == null ? "no" : trace;
+        packaging = packaging == null ? "thin" : packaging;
+        reproducible = reproducible == null ? "no" : reproducible;
+        compression = compression == null ? "default" : compression;
+        classDataSharing = classDataSharing == null ? "no" : classDataSharing;
+        runtime = runtime == null ? "jdk" : runtime;
+        profile = profile == null ? "no" : profile;
+        benchThreshold = benchThreshold == null ? "10" : benchThreshold;
+        buildCacheSize = buildCacheSize == null ? "0" : buildCacheSize;
+        jlink = jlink == null || jlink.equalsIgnoreCase("---") ? null : jlink;
+        if (jlink == null)
+            jlink = "---";
+        jdeps = jdeps == null || jdeps.equalsIgnoreCase("---") ? null : jdeps;
+        if (jdeps == null)
+            jdeps = "---";
+
+        simpleOutputBool = simpleOutput.equalsIgnoreCase("Yes");
+        bytecodeCacheSizeMb = Long.parseLong(bytecodeCache);
+        buildCacheSizeMb = Long.parseLong(buildCacheSize);
+        benchThresholdPercent = Integer.parseInt(benchThreshold);
+        reproducibleBool = reproducible.equalsIgnoreCase("Yes");
+        if (compression.equalsIgnoreCase("stored"))
+            compressionLevel = 0;
+        else if (compression.equalsIgnoreCase("default"))
+            compressionLevel = -1;
+        else
+            compressionLevel = Integer.parseInt(compression);
+        // In-memory and incremental compilation need the compiler of the JDK we are running on.
+        final boolean systemCompiler = compiler.equalsIgnoreCase("---") && javax.tools.ToolProvider.getSystemJavaCompiler() != null;
+        incrementalBool = incremental.equalsIgnoreCase("Yes") && systemCompiler;
+        // Incremental builds have to keep their class files on disk.
+        inMemoryBool = inMemory.equalsIgnoreCase("Yes") && systemCompiler && !incrementalBool;
+    }
+
+    // Port and token of a daemon running for this project.
+    private static final File DAEMON_FILE = new File(".jbp/daemon");
+    private static final int DAEMON_IDLE_MINUTES = 60;
+
+    // Everything a daemon depends on which is not reloaded for every build. If any of it changes the daemon has to be restarted.
+    private static String daemonFingerprint() {
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(System.getProperty("java.home")).append('\n').append(System.getProperty("java.version")).append('\n');
+        final String classpath = jbpClasspath();
+        if (classpath != null) {
+            final File self = new File(classpath).isDirectory() ? new File(classpath, "jbp.class") : new File(classpath);
+            sb.append(self.getAbsolutePath()).append(self.length()).append(self.lastModified()).append('\n');
+        }
+        try {
+            final File config = new File("jbp.config");
+            if (config.exists())
+                sb.append(sha256(Files.readAllBytes(config.toPath())));
+        } catch (final IOException ex) {
+            sb.append("unreadable config");
+        }
+        return sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Directory (or jar) we have been loaded from, or null if we do not know.
+    private static String jbpClasspath() {
+        try {
+            return Paths.get(jbp.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (final Exception ex) {
+            return null;
+        }
+    }
+
+    // Sends everything written to it as length prefixed frames to a client.
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final java.io.DataOutputStream out;
+
+        FrameOutputStream(final java.io.DataOutputStream out) {
+            assert out != null;
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return;
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static void runDaemon() {
+        // Load the compiler and tools once, staying warm is the whole point of the daemon.
+        javax.tools.ToolProvider.getSystemJavaCompiler();
+        for (final String name : new String[] {"javac", "jar", "javap", "javadoc"}) {
+            synchronized (tools) {
+                tools.computeIfAbsent(name, n -> ToolProvider.findFirst(n).orElse(null));
+            }
+        }
+
+        final String fingerprint = daemonFingerprint();
+        final byte[] random = new byte[16];
+        new java.security.SecureRandom().nextBytes(random);
+        final String token = sha256(random);
+
+        String daemonFileContent = null;
+        try (final java.net.ServerSocket server = new java.net.ServerSocket(0, 50, java.net.InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(DAEMON_IDLE_MINUTES * 60 * 1000);
+            DAEMON_FILE.getParentFile().mkdirs();
+            daemonFileContent = server.getLocalPort() + " " + token + "\n";
+            writeToFile(DAEMON_FILE.getPath(), daemonFileContent);
+            System.out.printf("jbp daemon is listening on port %d and stops after %d idle minutes.\n", server.getLocalPort(), DAEMON_IDLE_MINUTES);
+
+            while (true) {
+                final java.net.Socket client;
+                try {
+                    client = server.accept();
+                } catch (final java.net.SocketTimeoutException ex) {
+                    System.out.println("Stopping daemon because it has been idle for too long.");
+                    break;
+                }
+
+                try (client) {
+                    client.setSoTimeout(10 * 1000); // only for reading the request
+                    final java.io.DataInputStream in = new java.io.DataInputStream(client.getInputStream());
+                    final java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(client.getOutputStream()));
+                    final String requestToken = in.readUTF();
+                    final String requestFingerprint = in.readUTF();
+                    final String command = in.readUTF();
+                    client.setSoTimeout(0);
+
+                    if (!requestToken.equals(token)) {
+                        out.writeUTF("DENIED");
+                        out.flush();
+                        continue;
+                    }
+                    if (command.equals("stop")) {
+                        out.writeUTF("STOPPED");
+                        out.flush();
+                        System.out.println("Stopping daemon on request.");
+                        break;
+                    }
+                    if (!requestFingerprint.equals(fingerprint) || !daemonFingerprint().equals(fingerprint)) {
+                        out.writeUTF("RESTART");
+                        out.flush();
+                        System.out.println("Stopping daemon because the JDK, jbp or jbp.config changed.");
+                        break;
+                    }
+                    out.writeUTF("OK");
+                    out.flush();
+
+                    System.out.println("Building...");
+                    final PrintStream console = System.out;
+                    final PrintStream forward = new PrintStream(new FrameOutputStream(out), true);
+                    int exitCode = -1;
+                    Throwable fatal = null;
+                    System.setOut(forward);
+                    try {
+                        exitCode = build();
+                    } catch (final Throwable ex) {
+                        // Errors as well (e.g. a failed assertion), the client should see them instead of a lost connection.
+                        ex.printStackTrace(forward);
+                        if (ex instanceof VirtualMachineError)
+                            fatal = ex;
+                    } finally {
+                        forward.flush();
+                        System.setOut(console);
+                    }
+                    out.writeInt(-1);
+                    out.writeInt(exitCode);
+                    out.flush();
+                    System.out.println(exitCode == 0 ? "Build succeeded." : "Build failed.");
+                    if (fatal != null) {
+                        // After running out of memory (or the like) this JVM cannot be trusted anymore, the next build starts a new daemon.
+                        System.out.println("Stopping daemon because of " + fatal);
+                        break;
+                    }
+                } catch (final IOException ex) {
+                    System.out.println("Lost connection to client: " + ex.getMessage());
+                }
+            }
+        } catch (final IOException ex) {
+            System.out.println("Failed to run daemon: " + ex.getMessage());
+        } finally {
+            // Only remove it if no other daemon has taken over in the meantime.
+            try {
+                if (daemonFileContent != null && DAEMON_FILE.exists() && new String(Files.readAllBytes(DAEMON_FILE.toPath()), StandardCharsets.UTF_8).equals(daemonFileContent))
+                    DAEMON_FILE.delete();
+            } catch (final IOException ex) {
+                // nothing we can do
+            }
+        }
+    }
+
+    private static void startDaemonProcess() {
+        final String classpath = jbpClasspath();
+        if (classpath == null)
+            return;
+        try {
+            final File daemonLog = new File(".jbp/daemon.log");
+            daemonLog.getParentFile().mkdirs();
+            final ProcessBuilder builder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", classpath, "jbp", "--daemon");
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(ProcessBuilder.Redirect.appendTo(daemonLog));
+            builder.start();
+        } catch (final IOException ex) {
+            System.out.println("Failed to start the jbp daemon: " + ex.getMessage());
+        }
+    }
+
+    // Sends a command to the daemon of this project over 'socket'. Returns the daemon's answer, or null if there is no usable daemon.
+    private static String contactDaemon(final String command, final java.net.Socket socket) {
+        if (!DAEMON_FILE.exists())
+            return null;
+
+        try {
+            final String[] content = new String(Files.readAllBytes(DAEMON_FILE.toPath()), StandardCharsets.UTF_8).strip().split(" ");
+            socket.connect(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), Integer.parseInt(content[0])), 1000);
+            final java.io.DataOutputStream out = new java.io.DataOutputStream(socket.getOutputStream());
+            out.writeUTF(content[1]);
+            out.writeUTF(daemonFingerprint());
+            out.writeUTF(command);
+            out.flush();
+            return new java.io.DataInputStream(socket.getInputStream()).readUTF();
+        } catch (final IOException | RuntimeException ex) {
+            // The daemon is gone without cleaning up after itself.
+            DAEMON_FILE.delete();
+            return null;
+        }
+    }
+
+    // Forwards the build to the daemon of this project and returns its exit code, or null if no daemon is running.
+    private static Integer buildWithDaemon() {
+        if ("no".equalsIgnoreCase(System.getProperty("jbp.daemon")))
+            return null;
+
+        try (final java.net.Socket socket = new java.net.Socket()) {
+            final String answer = contactDaemon("build", socket);
+            if ("RESTART".equals(answer)) {
+                System.out.println("The jbp daemon is out of date (JDK, jbp or jbp.config changed). Restarting it in the background.");
+                startDaemonProcess();
+                return null;
+            }
+            if (!"OK".equals(answer))
+                return null;
+
+            final java.io.DataInputStream in = new java.io.DataInputStream(socket.getInputStream());
+            byte[] buffer = new byte[8192];
+            while (true) {
+                final int length = in.readInt();
+                if (length == -1)
+                    return in.readInt();
+                if (length > buffer.length)
+                    buffer = new byte[length];
+                in.readFully(buffer, 0, length);
+                System.out.write(buffer, 0, length);
+                System.out.flush();
+            }
+        } catch (final IOException ex) {
+            System.out.println();
+            System.out.println("Lost connection to the jbp daemon: " + ex.getMessage());
+            System.out.println("BUILD FAILED");
+            return -1;
+        }
+    }
+
+    // Quiet period after the last file system event before we rebuild, so saving many files at once only triggers one build.
+    private static final long WATCH_DEBOUNCE_MILLIS = 300;
+
+    private static void registerRecursively(final WatchService watcher, final Map<WatchKey, Path> keys, final Path dir) throws IOException {
+        try (final Stream<Path> stream = Files.walk(dir)) {
+            for (final Path path : (Iterable<Path>) stream.filter(Files::isDirectory)::iterator) {
+                keys.put(path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), path);
+            }
+        }
+    }
+
+    // Returns which input ('src', 'res', 'libs' or 'jbp.config') a changed path belongs to, or null if we do not care about it.
+    private static String watchedInput(final Path path) {
+        final Path relative = Paths.get("").toAbsolutePath().relativize(path.toAbsolutePath());
+        if (relative.getNameCount() == 0)
+            return null;
+        final String first = relative.getName(0).toString();
+        if (first.equals("src") || first.equals("res") || first.equals("libs") || first.equals("jbp.config"))
+            return first;
+        return null;
+    }
+
+    private static void watch() {
+        int exitCode = build();
+
+        try (final WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            final Map<WatchKey, Path> keys = new HashMap<>();
+            final Path root = Paths.get("").toAbsolutePath();
+            // The root is only watched for 'jbp.config' and for input directories that get created later on.
+            keys.put(root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), root);
+            for (final String dir : new String[] {"src", "res", "libs"}) {
+                if (new File(dir).isDirectory())
+                    registerRecursively(watcher, keys, root.resolve(dir));
+            }
+
+            // The build itself writes into the project (e.g 'build', '.jbp' or 'sources.txt'), which wakes us up
+            // without anything to build, so this only gets printed once per build.
+            boolean built = true;
+            while (true) {
+                if (built) {
+                    System.out.println();
+                    System.out.println("Watching 'src', 'res', 'libs' and 'jbp.config' for changes. Press Ctrl+C to stop.");
+                }
+
+                final Set<String> changed = new TreeSet<>();
+                WatchKey key = watcher.take();
+                while (key != null) {
+                    final Path dir = keys.get(key);
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // We lost events, so we have to assume everything changed.
+                            changed.add("src");
+                            changed.add("res");
+                            changed.add("libs");
+                            changed.add("jbp.config");
+                            continue;
+                        }
+                        if (dir == null)
+                            continue;
+                        final Path path = dir.resolve((Path) event.context());
+                        final String input = watchedInput(path);
+                        if (input == null)
+                            continue;
+                        changed.add(input);
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+                            registerRecursively(watcher, keys, path);
+                    }
+                    if (!key.reset())
+                        keys.remove(key);
+                    key = watcher.poll(WATCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                built = !changed.isEmpty();
+                if (!built)
+                    continue;
+
+                System.out.println("Detected changes in " + String.join(", ", changed) + ". Rebuilding...");
+                System.out.println();
+                // What a failed build left behind cannot be kept, so the one after it builds everything.
+                exitCode = build(exitCode == 0 ? changed : null);
+            }
+        } catch (final IOException ex) {
+            System.out.println("Failed to watch the project: " + ex.getMessage());
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes a project with the given number of source files (spread over packages, each with some extra classes), libraries and resources.
+    private static void generateSyntheticProject(final Path dir, final int files, final int packages, final int classesPerFile, final int libs, final int res) throws IOException {
+        for (int i = 0; i < files; ++i) {
+            final String pkg = "p" + (i % packages);
+            final StringBuilder sb = new StringBuilder(2048);
+            sb.append("package ").append(pkg).append(";\n\n");
+            sb.append("import java.util.ArrayList;\nimport java.util.List;\n\n");
+            sb.append("/** Generated by 'java jbp --selfbench'. */\n");
+            sb.append("public class C").append(i).append(" {\n");
+            sb.append("    public static final int ID = ").append(i).append(";\n");
+            sb.append("    private final List<String> names = new ArrayList<>();\n\n");
+            sb.append("    public int run(final int n) {\n");
+            sb.append("        int sum = 0;\n");
+            sb.append("        for (int i = 0; i < n; ++i) {\n");
+            sb.append("            names.add(\"name\" + i);\n");
+            sb.append("            sum += names.get(i).length() * ID;\n");
+            sb.append("        }\n");
+            if (i > 0) // a dependency into another package
+                sb.append("        sum += new p").append((i - 1) % packages).append(".C").append(i - 1).append("().run(n / 2);\n");
+            sb.append("        names.removeIf(name -> name.length() > 5);\n");
+            sb.append("        return sum;\n");
+            sb.append("    }\n\n");
+            sb.append("    @Override\n    public String toString() {\n        return \"C").append(i).append("\" + names;\n    }\n");
+            if (i == 0)
+                sb.append("\n    public static void main(final String[] args) {\n        System.out.println(new C0().run(10));\n    }\n");
+            sb.append("}\n");
+            for (int k = 1; k < classesPerFile; ++k) {
+                sb.append("\nclass C").append(i).append('_').append(k).append(" {\n");
+                sb.append("    long value(final long x) {\n        return x * ").append(k).append(" + C").append(i).append(".ID;\n    }\n");
+                sb.append("}\n");
+            }
+            final Path file = dir.resolve(Paths.get("src", pkg, "C" + i + ".java"));
+            Files.createDirectories(file.getParent());
+            Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        final java.util.Random random = new java.util.Random(42); // the same project every time
+        Files.createDirectories(dir.resolve("libs"));
+        for (int i = 0; i < libs; ++i) {
+            final Map<String, byte[]> entries = new TreeMap<>();
+            for (int k = 0; k < 100; ++k) {
+                final byte[] data = new byte[1024];
+                random.nextBytes(data);
+                entries.put("lib" + i + "/data" + k + ".bin", data);
+            }
+            writeJar(dir.resolve(Paths.get("libs", "lib" + i + ".jar")).toFile(), "Manifest-Version: 1.0\n", entries);
+        }
+        for (int i = 0; i < res; ++i) {
+            final Path file = dir.resolve(Paths.get("res", "dir" + (i % 10), "asset" + i + ".dat"));
+            Files.createDirectories(file.getParent());
+            final byte[] data = new byte[4096];
+            random.nextBytes(data);
+            Files.write(file, data);
+        }
+        Files.write(dir.resolve("jbp.config"), "Log = Yes\nEntryPoint = C0\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int selfBenchmark(final String spec) {
+        // files=500,packages=20,classes=2,libs=4,res=100,runs=5
+        final Map<String, Integer> size = new LinkedHashMap<>();
+        size.put("files", 500);
+        size.put("packages", 20);
+        size.put("classes", 2);
+        size.put("libs", 4);
+        size.put("res", 100);
+        size.put("runs", 5);
+        if (spec != null) {
+            for (final String pair : spec.split(",")) {
+                final String[] keyValue = pair.split("=");
+                if (keyValue.length != 2 || !size.containsKey(keyValue[0].strip()) || !keyValue[1].strip().matches("[0-9]+")) {
+                    System.out.println("Invalid size '" + pair + "'. Use for example: --selfbench files=500,packages=20,classes=2,libs=4,res=100,runs=5");
+                    return -1;
+                }
+                size.put(keyValue[0].strip(), Integer.parseInt(keyValue[1].strip()));
+            }
+        }
+        final int files = Math.max(1, size.get("files"));
+        final int packages = Math.max(1, Math.min(files, size.get("packages")));
+        final int runs = Math.max(1, size.get("runs"));
+        final String classpath = jbpClasspath();
+        if (classpath == null) {
+            System.out.println("Failed to find out where jbp has been loaded from.");
+            return -1;
+        }
+
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("jbp-selfbench");
+            System.out.printf("Generating %d source files in %d packages (%d classes each), %d libraries and %d resources in %s...\n", files, packages,
+                              size.get("classes"), size.get("libs"), size.get("res"), dir);
+            generateSyntheticProject(dir, files, packages, Math.max(1, size.get("classes")), size.get("libs"), size.get("res"));
+
+            // Every run is a fresh jbp process without a daemon, just like 'java jbp'.
+            final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int i = 0; i < runs; ++i) {
+                final Object[] result = execShellCommand(dir.toFile(), false, java, "-Djbp.daemon=no", "-cp", classpath, "jbp");
+                if ((int) result[1] != 0) {
+                    System.out.println(result[0]);
+                    System.out.println("The build of the generated project failed.");
+                    return -1;
+                }
+                System.out.printf("Run %d of %d done.\n", i + 1, runs);
+            }
+
+            // Each run recorded its phases into the history of the generated project.
+            final List<Map<String, String>> records = new ArrayList<>();
+            for (final String line : Files.readAllLines(dir.resolve(HISTORY_FILE.toPath()), StandardCharsets.UTF_8)) {
+                if (!line.isBlank())
+                    records.add(parseHistoryRecord(line));
+            }
+            final Set<String> keys = new java.util.LinkedHashSet<>();
+            for (final Map<String, String> record : records) {
+                for (final String key : record.keySet()) {
+                    if (key.startsWith("phase_ms."))
+                        keys.add(key);
+                }
+            }
+            keys.add("total_ms");
+
+            System.out.println();
+            System.out.printf("SELF BENCHMARK (jbp %s, Java %s, %d runs)\n", VERSION, System.getProperty("java.version"), records.size());
+            System.out.println("----------");
+            System.out.printf("%-24s %10s %10s %10s %10s\n", "", "median", "p90", "min", "max");
+            for (final String key : keys) {
+                final double[] values = records.stream().filter(record -> record.containsKey(key)).mapToDouble(record -> Double.parseDouble(record.get(key))).sorted().toArray();
+                if (values.length == 0)
+                    continue;
+                System.out.printf("%-24s %7.0f ms %7.0f ms %7.0f ms %7.0f ms\n", key.equals("total_ms") ? "total" : key.substring("phase_ms.".length()),
+                                  percentile(values, 0.5), percentile(values, 0.9), values[0], values[values.length - 1]);
+            }
+            final double[] heap = records.stream().mapToDouble(record -> Double.parseDouble(record.getOrDefault("peak_heap_bytes", "0")) / 1024 / 1024).sorted().toArray();
+            System.out.printf("%-24s %7.1f mb %7.1f mb %7.1f mb %7.1f mb\n", "peak heap", percentile(heap, 0.5), percentile(heap, 0.9), heap[0], heap[heap.length - 1]);
+            final double[] totals = records.stream().mapToDouble(record -> Double.parseDouble(record.get("total_ms"))).sorted().toArray();
+            System.out.printf("Throughput: %.0f source files per second (median build), %.0f at best.\n", files / (percentile(totals, 0.5) / 1000),
+                              files / (totals[0] / 1000));
+            return 0;
+        } catch (final IOException ex) {
+            System.out.printf("Self benchmark failed because of '%s'\n", ex.getMessage());
+            return -1;
+        } finally {
+            if (dir != null) {
+                try {
+                    deleteDirectory(dir.toFile());
+                } catch (final IOException ex) {
+                    System.out.println("Failed to delete " + dir);
+                }
+            }
+        }
+    }
+
+    // A check of 'java jbp --selftest'. Gets an empty directory and returns what went wrong, or null if nothing did.
+    private interface SelfCheck {
+        String run(Path dir, String classpath) throws IOException;
+    }
+
+    private interface SourceEdit {
+        void apply(Path project) throws IOException;
+    }
+
+    // Runs a build in a new jbp process without a daemon, just like 'java jbp'. Returns its output, or null if it failed.
+    private static String selfTestBuild(final Path dir, final String classpath) throws IOException {
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        final Object[] result = execShellCommand(dir.toFile(), false, java, "-Djbp.daemon=no", "-cp", classpath, "jbp");
+        return (int) result[1] == 0 ? (String) result[0] : null;
+    }
+
+    private static void replaceInFile(final Path file, final String from, final String to) throws IOException {
+        final String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        if (!content.contains(from))
+            throw new IOException(String.format("'%s' does not contain '%s'", file, from));
+        Files.write(file, content.replace(from, to).getBytes(StandardCharsets.UTF_8));
+    }
 
-                stdout(String.format("\t-> Created %d class files.\n", numberOfClassFiles));
-                stdout(String.format("\t-> Created %d anonymous class files.\n", numberOfAnonymousClassFiles));
-            }
-        } catch (final IOException ex) {
-            buildFail("\t-> Failed to emit bytecode.");
-            assert false;
+    // Relative path -> hash of every file inside of 'dir'.
+    private static Map<String, String> fileHashes(final Path dir) throws IOException {
+        final Map<String, String> hashes = new TreeMap<>();
+        for (final File file : listAllFiles(dir.toFile())) {
+            if (file.isFile())
+                hashes.put(dir.relativize(file.toPath()).toString().replace(File.separatorChar, '/'), sha256(Files.readAllBytes(file.toPath())));
         }
+        return hashes;
     }
 
-    private static void generateDocumentation() {
-        stdout("> Generating JavaDoc for your project...");
-        final File javadocDir = new File("build/documentation");
-        if (!javadocDir.exists()) {
-            if (!javadocDir.mkdir()) {
-                buildFail("\t-> Failed to create javadoc directory.");
-                assert false;
-            }
+    // Edits the sources in all the ways the dependency tracking has to get right and compares every
+    // incremental build with a clean build of the same sources.
+    private static String checkIncrementalBuild(final Path dir, final String classpath) throws IOException {
+        final int files = 20;
+        final Path incremental = dir.resolve("incremental");
+        final Path clean = dir.resolve("clean");
+        for (final Path project : new Path[] {incremental, clean}) {
+            generateSyntheticProject(project, files, 4, 2, 0, 0);
+            // Base <- Derived <- User, which never names Base, and a constant javac inlines into User.
+            final Path q = Files.createDirectories(project.resolve(Paths.get("src", "q")));
+            Files.write(q.resolve("Base.java"), "package q;\n\npublic class Base {\n    public int size() {\n        return 1;\n    }\n}\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(q.resolve("Derived.java"), "package q;\n\npublic class Derived extends Base {\n}\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(q.resolve("Constants.java"), "package q;\n\npublic class Constants {\n    public static final int LIMIT = 10;\n}\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(q.resolve("User.java"), "package q;\n\npublic class User {\n    public long use() {\n        return new Derived().size() + Constants.LIMIT;\n    }\n}\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(project.resolve("jbp.config"), ("EntryPoint = C0\nByteCodeDetails = No\nIncremental = " + (project == incremental ? "Yes" : "No") + "\n").getBytes(StandardCharsets.UTF_8));
         }
-        try {
-            Object[] result = null;
-            if (javadoc.equalsIgnoreCase("---")) {
-                result = execShellCommand(null, null, false, "javadoc", "@sources.txt", "-d", "build/documentation");
-            } else {
-                result = execShellCommand(null, null, false, "\"" + javadoc + "\"", "@sources.txt", "-d", "build/documentation");
-            }
-            assert result != null;
-            if (((int) result[1]) != 0) {
-                stdout(result[0].toString());
-                buildFail("\t-> Failed to generate documentation.");
-                assert false;
-            } else {
-                stdout("\t-> Documentation generated.");
+        if (selfTestBuild(incremental, classpath) == null)
+            return "the first build failed";
+
+        final Map<String, SourceEdit> edits = new LinkedHashMap<>();
+        edits.put("a method body", project -> replaceInFile(project.resolve("src/p1/C1.java"), "sum += names.get(i).length() * ID;", "sum -= names.get(i).length() * ID;"));
+        edits.put("a signature other classes call", project -> replaceInFile(project.resolve("src/p1/C1.java"), "public int run(", "public long run("));
+        edits.put("a supertype", project -> replaceInFile(project.resolve("src/q/Base.java"), "public int size()", "public long size()"));
+        edits.put("a compile-time constant", project -> replaceInFile(project.resolve("src/q/Constants.java"), "LIMIT = 10", "LIMIT = 20"));
+        edits.put("a removed source file", project -> Files.delete(project.resolve(Paths.get("src", "p" + ((files - 1) % 4), "C" + (files - 1) + ".java"))));
+        edits.put("a new source file", project -> Files.write(project.resolve("src/q/Extra.java"), "package q;\n\nclass Extra extends Derived {\n}\n".getBytes(StandardCharsets.UTF_8)));
+
+        for (final Map.Entry<String, SourceEdit> edit : edits.entrySet()) {
+            edit.getValue().apply(incremental);
+            edit.getValue().apply(clean);
+            if (selfTestBuild(incremental, classpath) == null || selfTestBuild(clean, classpath) == null)
+                return "a build failed after changing " + edit.getKey();
+            final Map<String, String> expected = fileHashes(clean.resolve("build/classes"));
+            final Map<String, String> actual = fileHashes(incremental.resolve("build/classes"));
+            if (!expected.equals(actual)) {
+                final Set<String> differences = new TreeSet<>(expected.keySet());
+                differences.addAll(actual.keySet());
+                differences.removeIf(name -> java.util.Objects.equals(expected.get(name), actual.get(name)));
+                return String.format("after changing %s these class files differ from a clean build: %s", edit.getKey(), differences);
             }
-        } catch (final IOException ex) {
-            buildFail("\t-> Failed to generate documentation.");
-            assert false;
         }
+        return null;
     }
 
-    private static void analyzeSourceTree() {
-        stdout("> Analyzing your source tree...");
-        final File src = new File("src");
-        if (!src.exists()) {
-            buildFail("\t-> No src directory found. Please create one.");
-            assert false;
-        }
+    private static final int SCAN_FILES_PER_SECOND = 5000; // the least we expect, even from slow machines
 
-        int sourceFileCounter = 0;
-        int loc = 0;
-        int numberOfEntryPoints = 0;
+    // Scans a large generated tree (plus files with odd line endings) and compares the result with reading every file into a
+    // String, which is how the lines of code were counted before.
+    private static String checkSourceScanning(final Path dir, final String classpath) throws IOException {
+        final int files = 20000;
+        generateSyntheticProject(dir, files, 200, 1, 0, 0);
+        final Path odd = Files.createDirectories(dir.resolve(Paths.get("src", "odd")));
+        Files.write(odd.resolve("Empty.java"), new byte[0]);
+        Files.write(odd.resolve("Newlines.java"), "\n\n\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(odd.resolve("Trailing.java"), "class Trailing {\n}\n\n\n\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(odd.resolve("NoNewline.java"), "class NoNewline {\n}".getBytes(StandardCharsets.UTF_8));
+        Files.write(odd.resolve("Windows.java"), "class Windows {\r\n    public static void main(String[] args) {}\r\n}\r\n\r\n".getBytes(StandardCharsets.UTF_8));
 
-        File[] files = null;
-        try {
-            files = listAllFiles(src);
-        } catch (final IOException ex) {
-            buildFail("\t-> Failed to analyze your source tree.");
-            assert false;
-        }
-        assert files != null;
+        final File[] javaFiles = Arrays.stream(listAllFiles(dir.resolve("src").toFile())).filter(f -> f.getName().endsWith(".java")).toArray(File[]::new);
+        final long start = System.nanoTime();
+        final int[] scans = scanSourceFiles(javaFiles);
+        final double seconds = (System.nanoTime() - start) / 1e9;
 
-        final StringBuilder sbuffer = new StringBuilder();
-        for (int i = 0, l = files.length; i < l; ++i) {
-            final File file = files[i];
-            if (!file.getAbsolutePath().endsWith(".java"))
-                continue;
-            sbuffer.append(file.getAbsolutePath()).append(System.lineSeparator());
-            sourceFileCounter += 1;
+        for (int i = 0; i < javaFiles.length; ++i) {
+            final String content = new String(Files.readAllBytes(javaFiles[i].toPath()), StandardCharsets.UTF_8);
+            final int lines = content.split("\n").length;
+            final boolean hasMain = content.contains("public static void main(");
+            if (scans[i] != (hasMain ? -lines - 1 : lines))
+                return String.format("'%s' has %d lines%s, but the scanner says %d", javaFiles[i], lines, hasMain ? " and a main method" : "", scans[i]);
+        }
+        final double filesPerSecond = javaFiles.length / seconds;
+        System.out.printf("       Scanned %d source files in %.3f seconds (%.0f files per second).\n", javaFiles.length, seconds, filesPerSecond);
+        if (filesPerSecond < SCAN_FILES_PER_SECOND)
+            return String.format("scanning is slower than %d files per second", SCAN_FILES_PER_SECOND);
+        return null;
+    }
 
-            final StringBuilder locBuffer = new StringBuilder(1024);
-            readFileIntoMemory(locBuffer, file);
-            if (entryPoint == null) {
-                if (locBuffer.toString().contains("public static void main(")) {
-                    entryPoint = file.getName().split("\\.")[0];
-                    numberOfEntryPoints += 1;
+    // Builds the same project twice for both ways the jar gets written (from memory and from 'build/classes'), with
+    // different file times in between, and expects the very same jar every time.
+    private static String checkReproducibleJar(final Path dir, final String classpath) throws IOException {
+        generateSyntheticProject(dir, 50, 5, 2, 2, 0);
+        final Map<String, String> hashes = new LinkedHashMap<>();
+        for (final String inMemory : new String[] {"Yes", "No"}) {
+            Files.write(dir.resolve("jbp.config"), ("EntryPoint = C0\nByteCodeDetails = No\nReproducible = Yes\nInMemory = " + inMemory + "\n").getBytes(StandardCharsets.UTF_8));
+            for (int run = 1; run <= 2; ++run) {
+                // Zip files store times in steps of two seconds, so make sure the second build happens in another step.
+                for (final File file : listAllFiles(dir.resolve("src").toFile()))
+                    file.setLastModified(System.currentTimeMillis() - run * 60 * 60 * 1000);
+                try {
+                    Thread.sleep(2100);
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
                 }
+                if (selfTestBuild(dir, classpath) == null)
+                    return String.format("the build failed (InMemory = %s)", inMemory);
+                hashes.put(String.format("InMemory = %s, build %d", inMemory, run), sha256(Files.readAllBytes(dir.resolve("build/release/Program.jar"))));
             }
-            if (!simpleOutputBool)
-                loc += locBuffer.toString().split("\n").length;
         }
+        if (new HashSet<>(hashes.values()).size() != 1)
+            return "the jars differ: " + hashes;
+        return null;
+    }
 
-        writeToFile("sources.txt", sbuffer.toString());
-        if (!simpleOutputBool) {
-            stdout(String.format("\t-> Total of %d source files found.\n", sourceFileCounter));
-            stdout(String.format("\t-> Total lines of code are %d (including whitespaces and comments).\n", loc));
+    // Builds generated projects with every check and prints which ones passed. Returns the exit code.
+    private static int selfTest() {
+        final String classpath = jbpClasspath();
+        if (classpath == null) {
+            System.out.println("Failed to find out where jbp has been loaded from.");
+            return -1;
         }
-        if (entryPoint != null) {
-            assert numberOfEntryPoints >= 1;
-            stdout(String.format("\t-> Entry point is '%s'.\n", entryPoint));
-            if (numberOfEntryPoints > 1) {
-                stdout("\t-> Note that there are more than one entry point in your program.\n");
+
+        final Map<String, SelfCheck> checks = new LinkedHashMap<>();
+        checks.put("Source scanning counts like before and is fast", jbp::checkSourceScanning);
+        checks.put("Incremental builds match clean builds", jbp::checkIncrementalBuild);
+        checks.put("Reproducible builds write identical jars", jbp::checkReproducibleJar);
+
+        int failed = 0;
+        for (final Map.Entry<String, SelfCheck> check : checks.entrySet()) {
+            final long start = System.nanoTime();
+            String problem = null;
+            Path dir = null;
+            try {
+                dir = Files.createTempDirectory("jbp-selftest");
+                problem = check.getValue().run(dir, classpath);
+            } catch (final IOException | RuntimeException ex) {
+                problem = "failed because of '" + ex.getMessage() + "'";
+            } finally {
+                if (dir != null) {
+                    try {
+                        deleteDirectory(dir.toFile());
+                    } catch (final IOException ex) {
+                        System.out.println("Failed to delete " + dir);
+                    }
+                }
             }
-        } else {
-            // this is fine because we could have a library which normally does not have an entry point
-            stdout("\t-> No entry point found.\n");
-            entryPoint = "--NoMainFound--";
+            if (problem != null)
+                failed += 1;
+            System.out.printf("%-6s %s (%.1f seconds)%s\n", problem == null ? "PASSED" : "FAILED", check.getKey(), (System.nanoTime() - start) / 1e9,
+                              problem == null ? "" : "\n       " + problem);
         }
+        System.out.println();
+        System.out.printf("%d of %d checks passed.\n", checks.size() - failed, checks.size());
+        return failed == 0 ? 0 : -1;
     }
 
-    private static void cleanBuildDirectory() {
-        final File cwd = new File("build");
-        if (!cwd.exists()) {
-            stdout("> Creating build directory...");
-            if (cwd.mkdir()) {
-                stdout("\t-> Creation successfully.");
-            } else {
-                buildFail("\t-> Failed to create build directory.");
-                assert false;
+    // Builds every sub directory with a jbp.config. Projects run in their own jbp process once the projects they
+    // depend on ('Depends') have been built, independent ones in parallel.
+    private static int buildWorkspace() {
+        final long start = System.nanoTime();
+        final File[] found = new File("").getAbsoluteFile().listFiles(f -> f.isDirectory() && new File(f, "jbp.config").isFile());
+        if (found == null || found.length == 0) {
+            System.out.println("No projects found. Every sub directory containing a jbp.config is a project of the workspace.");
+            return -1;
+        }
+        final String classpath = jbpClasspath();
+        if (classpath == null) {
+            System.out.println("Failed to find out where jbp has been loaded from.");
+            return -1;
+        }
+
+        final Map<File, List<File>> projects = new TreeMap<>(); // project -> projects of the workspace it depends on
+        try {
+            for (final File dir : found)
+                projects.put(dir.getCanonicalFile(), new ArrayList<>());
+            for (final Map.Entry<File, List<File>> project : projects.entrySet()) {
+                for (final File dependency : dependencies(readConfigFile(new File(project.getKey(), "jbp.config")), project.getKey())) {
+                    // Dependencies outside of the workspace simply have to be built already.
+                    if (projects.containsKey(dependency))
+                        project.getValue().add(dependency);
+                }
             }
-        } else {
-            stdout("> Cleaning build directory...");
+        } catch (final IOException | BuildFailedException ex) {
+            System.out.println("Failed to read the workspace: " + ex.getMessage());
+            return -1;
+        }
 
-            int deletionCounter = 0;
+        // Kahn's algorithm, so we can refuse cycles before building anything.
+        final List<File> order = new ArrayList<>();
+        final Map<File, Integer> missing = new HashMap<>();
+        for (final Map.Entry<File, List<File>> project : projects.entrySet())
+            missing.put(project.getKey(), project.getValue().size());
+        while (order.size() < projects.size()) {
+            File next = null;
+            for (final File project : projects.keySet()) {
+                if (missing.get(project) == 0 && !order.contains(project)) {
+                    next = project;
+                    break;
+                }
+            }
+            if (next == null) {
+                final List<String> cycle = new ArrayList<>();
+                for (final File project : projects.keySet()) {
+                    if (!order.contains(project))
+                        cycle.add(project.getName());
+                }
+                System.out.println("The dependencies of these projects form a cycle: " + String.join(", ", cycle));
+                return -1;
+            }
+            order.add(next);
+            for (final Map.Entry<File, List<File>> project : projects.entrySet()) {
+                if (project.getValue().contains(next))
+                    missing.put(project.getKey(), missing.get(project.getKey()) - 1);
+            }
+        }
 
-            File[] files = null;
-            try {
-                files = listAllFiles(cwd);
-            } catch (final IOException ex) {
-                buildFail("\t-> Failed to clean the build directory.");
-                assert false;
+        final int threads = Math.max(1, Math.min(projects.size(), Runtime.getRuntime().availableProcessors()));
+        System.out.printf("Building %d projects with up to %d at a time...\n", projects.size(), threads);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "jbp-workspace");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Map<File, CompletableFuture<String>> results = new LinkedHashMap<>();
+        final Map<File, Double> seconds = new java.util.concurrent.ConcurrentHashMap<>();
+        try {
+            for (final File project : order) {
+                final List<CompletableFuture<String>> dependencies = new ArrayList<>();
+                for (final File dependency : projects.get(project))
+                    dependencies.add(results.get(dependency));
+                results.put(project, CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0])).thenApplyAsync(ignored -> {
+                    for (final CompletableFuture<String> dependency : dependencies) {
+                        if (!dependency.join().equals("OK"))
+                            return "SKIPPED";
+                    }
+                    final long projectStart = System.nanoTime();
+                    Object[] result;
+                    try {
+                        result = execShellCommand(project, false, Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", classpath, "jbp");
+                    } catch (final IOException ex) {
+                        result = new Object[] {ex.getMessage() + "\n", -1};
+                    }
+                    seconds.put(project, (System.nanoTime() - projectStart) / 1000000000.0);
+                    final String status = (int) result[1] == 0 ? "OK" : "FAILED";
+                    synchronized (System.out) {
+                        System.out.println();
+                        System.out.printf("=== %s (%s) ===\n", project.getName(), status);
+                        System.out.print(result[0]);
+                    }
+                    return status;
+                }, pool));
             }
-            assert files != null;
 
-            for (int i = 0, l = files.length; i < l; ++i) {
-                final File file = files[i];
-                if (file.delete())
-                    deletionCounter += 1;
+            CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).join();
+            boolean success = true;
+            System.out.println();
+            System.out.println("WORKSPACE SUMMARY");
+            System.out.println("-----------------");
+            for (final Map.Entry<File, CompletableFuture<String>> result : results.entrySet()) {
+                final String status = result.getValue().join();
+                success &= status.equals("OK");
+                if (seconds.containsKey(result.getKey()))
+                    System.out.printf("%-8s %-32s %.3f SECONDS\n", status, result.getKey().getName(), seconds.get(result.getKey()));
+                else
+                    System.out.printf("%-8s %s\n", status, result.getKey().getName());
             }
+            System.out.println();
+            System.out.println(success ? "WORKSPACE BUILD SUCCESSFULL" : "WORKSPACE BUILD FAILED");
+            System.out.println("TOTAL BUILD TIME : " + (System.nanoTime() - start) / 1000000 / 1000.0 + " SECONDS");
+            return success ? 0 : -1;
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-            // TODO(nschultz): Lets delete every directory (except build itself) aswell.
+    // Output of the phase running on the current thread. It gets printed once every earlier phase has been printed.
+    private static final ThreadLocal<ByteArrayOutputStream> phaseOutput = new ThreadLocal<>();
 
-            if (deletionCounter == 0)
-                stdout("\t-> Nothing to delete.");
+    // Sends everything a phase writes to System.out into that phase's buffer, anything else goes straight through.
+    private static final class PhaseOutputStream extends OutputStream {
+
+        private final PrintStream console;
+
+        PhaseOutputStream(final PrintStream console) {
+            assert console != null;
+            this.console = console;
+        }
+
+        @Override
+        public void write(final int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            final ByteArrayOutputStream buffer = phaseOutput.get();
+            if (buffer != null)
+                buffer.write(b, off, len);
             else
-                stdout(String.format("\t-> Deleted %d files.\n", deletionCounter));
+                console.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            if (phaseOutput.get() == null)
+                console.flush();
         }
     }
 
-    private static void loadConfiguration() {
-        final File configFile = new File("jbp.config");
-        if (configFile.exists()) {
-            final StringBuilder config = new StringBuilder();
-            readFileIntoMemory(config, configFile);
-            final String[] configLines = config.toString().split("\n");
-            final Map<String, String> configMap = new LinkedHashMap<>();
-            for (final String configLine : configLines) {
-                if (configLine.strip().isEmpty())
-                    continue;
+    private static final class Phase {
+        final String name;
+        final Runnable action;
+        final Phase[] dependencies;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        CompletableFuture<Void> future = null;
 
-                final String[] entry = configLine.strip().split("=");
-                if (entry.length != 2) {
-                    buildFail("Invalid config file entry."); // TODO(nschultz): Improve error message
-                    assert false;
-                }
+        Phase(final String name, final Runnable action, final Phase...dependencies) {
+            assert name != null;
+            assert action != null;
+            assert dependencies != null;
+            this.name = name;
+            this.action = action;
+            this.dependencies = dependencies;
+        }
+    }
 
-                final String lhs = entry[0].strip();
-                final String rhs = entry[1].strip();
-                configMap.put(lhs, rhs);
-            }
+    // Runs every phase on a thread pool as soon as the phases it depends on are done. 'phases' has to be in the order
+    // a sequential build would run them in. Output gets printed in that order, and if phases fail the build fails
+    // with the one which would have failed first when running sequentially.
+    private static void runPhases(final List<Phase> phases) {
+        assert phases != null;
 
-            programName = configMap.get("ProgramName");
-            entryPoint = configMap.get("EntryPoint");
-            mode = configMap.get("Mode");
-            if (mode != null) { // null would have been fine
-                if (!mode.equalsIgnoreCase("debug") && !mode.equalsIgnoreCase("release")) {
-                    buildFail("Mode can only be set to 'debug' or 'release'.");
-                    assert false;
+        final PrintStream console = System.out;
+        final int threads = Math.max(1, Math.min(phases.size(), Runtime.getRuntime().availableProcessors() + 1));
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "jbp-phase");
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.setOut(new PrintStream(new PhaseOutputStream(console), true));
+        try {
+            for (final Phase phase : phases) {
+                final CompletableFuture<?>[] dependencies = new CompletableFuture<?>[phase.dependencies.length];
+                for (int i = 0; i < dependencies.length; ++i) {
+                    assert phase.dependencies[i].future != null : "dependencies have to come first";
+                    dependencies[i] = phase.dependencies[i].future;
                 }
+                phase.future = CompletableFuture.allOf(dependencies).thenRunAsync(() -> {
+                    phaseOutput.set(phase.output);
+                    final Span span = span("phase", phase.name);
+                    try {
+                        phase.action.run();
+                    } finally {
+                        span.close();
+                        phaseOutput.remove();
+                    }
+                }, pool);
             }
-            encoding = configMap.get("Encoding");
 
-            doc = configMap.get("Documentation");
-            if (doc != null) { // null would have been fine
-                if (!doc.equalsIgnoreCase("yes") && !doc.equalsIgnoreCase("no")) {
-                    buildFail("Documentation can only be set to 'yes' or 'no'.");
-                    assert false;
-                }
-            }
-            byteCodeDetails = configMap.get("ByteCodeDetails");
-            if (byteCodeDetails != null) { // null would have been fine
-                if (!byteCodeDetails.equalsIgnoreCase("yes") && !byteCodeDetails.equalsIgnoreCase("no")) {
-                    buildFail("ByteCodeDetails can only be set to 'yes' or 'no'.");
-                    assert false;
-                }
-            }
-            runAfterBuild = configMap.get("RunAfterBuild");
-            if (runAfterBuild != null) { // null would have been fine
-                if (!runAfterBuild.equalsIgnoreCase("yes") && !runAfterBuild.equalsIgnoreCase("no")) {
-                    buildFail("RunAfterBuild can only be set to 'yes' or 'no'.");
-                    assert false;
-                }
-            }
-            simpleOutput = configMap.get("SimpleOutput");
-            if (simpleOutput != null) { // null would have been fine
-                if (!simpleOutput.equalsIgnoreCase("yes") && !simpleOutput.equalsIgnoreCase("no")) {
-                    buildFail("SimpleOutput can only be set to 'yes' or 'no'.");
-                    assert false;
+            Throwable failure = null;
+            for (final Phase phase : phases) {
+                try {
+                    phase.future.join();
+                } catch (final CompletionException ex) {
+                    failure = ex.getCause();
                 }
+                console.write(phase.output.toByteArray(), 0, phase.output.size());
+                console.flush();
+                if (failure != null)
+                    break;
+                stdout(null);
             }
-            log = configMap.get("Log");
-            if (log != null) { // null would have been fine
-                if (!log.equalsIgnoreCase("yes") && !log.equalsIgnoreCase("no")) {
-                    buildFail("Log can only be set to 'yes' or 'no'.");
-                    assert false;
-                }
+
+            if (failure != null) {
+                // Phases which do not depend on the failed one might still be running, let them finish first.
+                for (final Phase phase : phases)
+                    phase.future.handle((result, ex) -> null).join();
+                if (failure instanceof RuntimeException)
+                    throw (RuntimeException) failure;
+                if (failure instanceof Error)
+                    throw (Error) failure;
+                throw new RuntimeException(failure);
             }
-            compiler = configMap.get("Compiler");
-            bytecodeViewer = configMap.get("Bytecodeviewer");
-            jvm = configMap.get("JVM");
-            jar = configMap.get("Jar");
-            javadoc = configMap.get("Javadoc");
+        } finally {
+            System.setOut(console);
+            pool.shutdown();
         }
+    }
 
-        // handle values which have not been set yet
-        programName = programName == null ? "Program.jar" : programName;
-        entryPoint = entryPoint == null || entryPoint.equalsIgnoreCase("---") ? null : entryPoint; // if null will get set when analyzing the source tree
-        mode = mode == null ? "debug" : mode;
-        encoding = encoding == null ? "UTF-8" : encoding;
-        doc = doc == null ? "no" : doc;
-        byteCodeDetails = byteCodeDetails == null ? "yes" : byteCodeDetails;
-        runAfterBuild = runAfterBuild == null ? "no" : runAfterBuild;
-        simpleOutput = simpleOutput == null ? "no" : simpleOutput;
-        log = log == null ? "no" : log;
-        compiler = compiler == null || compiler.equalsIgnoreCase("---") ? null : compiler;
-        if (compiler == null)
-            compiler = "---";
-        bytecodeViewer = bytecodeViewer == null || bytecodeViewer.equalsIgnoreCase("---") ? null : bytecodeViewer;
-        if (bytecodeViewer == null)
-            bytecodeViewer = "---";
-        jvm = jvm == null || jvm.equalsIgnoreCase("---") ? null : jvm;
-        if (jvm == null)
-            jvm = "---";
-        jar = jar == null || jar.equalsIgnoreCase("---") ? null : jar;
-        if (jar == null)
-            jar = "---";
-        javadoc = javadoc == null || javadoc.equalsIgnoreCase("---") ? null : javadoc;
-        if (javadoc == null)
-            javadoc = "---";
+    private static void finishTrace() {
+        if (trace == null || !trace.equalsIgnoreCase("yes") || !new File("build").isDirectory())
+            return;
+        writeTrace(new File("build/trace.json"));
+        System.out.println();
+        System.out.println("Trace written to build/trace.json (open it in chrome://tracing or ui.perfetto.dev):");
+        printTraceSummary();
+    }
 
-        simpleOutputBool = simpleOutput.equalsIgnoreCase("Yes");
+    // Runs a full build inside of the current working directory and returns the exit code.
+    private static int build() {
+        return build(null);
     }
 
-    public static void main(final String[] args) {
-        if (args.length == 0) {
-            startNanoTime = System.nanoTime();
+    // Like build(), but 'changed' tells which inputs ('src', 'res', 'libs' or 'jbp.config') changed since the previous
+    // successful build, so phases whose inputs did not change can be skipped. Null means everything has to be built.
+    private static int build(final Set<String> changed) {
+        startNanoTime = System.nanoTime();
+        keepProgram = false;
+        keepDocumentation = false;
+        resetPeakHeap();
+        spans.clear();
+        buildStats.clear();
+        try {
             {
-                loadConfiguration();
+                final Span span = span("phase", "configure");
+                try {
+                    loadConfiguration();
+                } finally {
+                    span.close();
+                }
                 if (!simpleOutputBool) {
-                    if (compiler.equalsIgnoreCase("---")) {
-                        System.out.println("Using your global compiler executable.");
+                    if (incrementalBool) {
+                        System.out.println("Using the compiler of your JVM for incremental builds.");
+                    } else if (inMemoryBool) {
+                        System.out.println("Using the in-memory compiler of your JVM.");
+                    } else if (compiler.equalsIgnoreCase("---")) {
+                        System.out.println(ToolProvider.findFirst("javac").isPresent() ? "Using the javac of your JVM (in-process)." : "Using your global compiler executable.");
                     } else {
                         System.out.println("Using following javac executable: " + compiler);
                     }
                     if (bytecodeViewer.equalsIgnoreCase("---")) {
-                        System.out.println("Using your global bytecode viewer executable.");
+                        System.out.println(ToolProvider.findFirst("javap").isPresent() ? "Using the javap of your JVM (in-process)." : "Using your global bytecode viewer executable.");
                     } else {
                         System.out.println("Using following javap executable: " + bytecodeViewer);
                     }
                     if (jar.equalsIgnoreCase("---")) {
-                        System.out.println("Using your global jar executable.");
+                        System.out.println(ToolProvider.findFirst("jar").isPresent() ? "Using the jar of your JVM (in-process)." : "Using your global jar executable.");
                     } else {
                         System.out.println("Using following jar executable: " + jar);
                     }
@@ -920,7 +5836,7 @@ public final class jbp {
                         System.out.println("Using the following JVM executable: " + jvm);
                     }
                     if (javadoc.equalsIgnoreCase("---")) {
-                        System.out.println("Using your global javadoc executable.");
+                        System.out.println(ToolProvider.findFirst("javadoc").isPresent() ? "Using the javadoc of your JVM (in-process)." : "Using your global javadoc executable.");
                     } else {
                         System.out.println("Using following javadoc executable: " + javadoc);
                     }
@@ -931,24 +5847,56 @@ public final class jbp {
                 } else {
                     stdout(null);
                 }
-                cleanBuildDirectory();
-                stdout(null);
-                analyzeSourceTree();
-                stdout(null);
-                if (doc.equalsIgnoreCase("yes")) {
-                    generateDocumentation();
-                    stdout(null);
-                }
-                createClassFiles();
-                stdout(null);
-                if (byteCodeDetails.equalsIgnoreCase("yes")) {
-                    createByteCodeFiles();
+                // The executable does not contain the resources, so they alone only need to be synced into the release.
+                keepProgram = changed != null && !changed.contains("src") && !changed.contains("libs") && !changed.contains("jbp.config")
+                              && new File("build/release", programName).isFile();
+                // The documentation only covers the sources.
+                keepDocumentation = changed != null && !changed.contains("src") && !changed.contains("jbp.config")
+                                    && doc.equalsIgnoreCase("yes") && new File("build/documentation").isDirectory();
+
+                final List<Phase> phases = new ArrayList<>();
+                if (keepProgram) {
+                    stdout("> Only resources changed...");
+                    stdout("\t-> Keeping the classes and the executable of the previous build.");
                     stdout(null);
+                    phases.add(new Phase("copy release files", jbp::copyReleaseFiles));
+                } else {
+                    if (keepDocumentation) {
+                        stdout("> Sources did not change...");
+                        stdout("\t-> Keeping the documentation of the previous build.");
+                        stdout(null);
+                    }
+                    final Phase clean = new Phase("clean", jbp::cleanBuildDirectory);
+                    phases.add(clean);
+                    final Phase analyze = new Phase("analyze", jbp::analyzeSourceTree, clean);
+                    phases.add(analyze);
+                    if (doc.equalsIgnoreCase("yes") && !keepDocumentation)
+                        phases.add(new Phase("javadoc", jbp::generateDocumentation, analyze));
+                    final Phase classes = new Phase("compile", jbp::createClassFiles, analyze);
+                    phases.add(classes);
+                    if (byteCodeDetails.equalsIgnoreCase("yes"))
+                        phases.add(new Phase("bytecode", jbp::createByteCodeFiles, classes));
+                    Phase executable = new Phase("jar", jbp::createOrRestoreExecutable, classes);
+                    phases.add(executable);
+                    if (packaging.equalsIgnoreCase("fat")) {
+                        executable = new Phase("merge libraries", jbp::mergeLibraries, executable);
+                        phases.add(executable);
+                    }
+                    // It changes 'build/release', so just like in a sequential build it only runs once everything before it succeeded.
+                    final Phase releaseFiles = new Phase("copy release files", jbp::copyReleaseFiles, phases.toArray(new Phase[0]));
+                    phases.add(releaseFiles);
+                    Phase release = new Phase("package", jbp::packageRelease, executable, releaseFiles);
+                    phases.add(release);
+                    if (runtime.equalsIgnoreCase("jlink")) {
+                        release = new Phase("runtime image", jbp::createRuntimeImage, release);
+                        phases.add(release);
+                    }
+                    if (new File("bench").isDirectory())
+                        phases.add(new Phase("benchmarks", jbp::createBenchmarks, release));
+                    if (classDataSharing.equalsIgnoreCase("yes"))
+                        phases.add(new Phase("class data sharing", jbp::createClassDataArchive, release));
                 }
-                createExecutable();
-                stdout(null);
-                packageRelease();
-                stdout(null);
+                runPhases(phases);
                 deleteSourcesFiles();
             }
 
@@ -957,23 +5905,30 @@ public final class jbp {
             System.out.println("BUILD SUCCESSFULL");
             stdout("-----------------");
             System.out.println("TOTAL BUILD TIME : " + elapsedMillis / 1000.0 + " SECONDS");
+            finishTrace();
 
             if (log.equalsIgnoreCase("yes"))
                 log(elapsedMillis / 1000.0);
 
-            if (runAfterBuild.equalsIgnoreCase("yes")) {
+            final boolean profileBool = profile.equalsIgnoreCase("yes");
+            if (runAfterBuild.equalsIgnoreCase("yes") || profileBool) {
                 System.out.println();
                 System.out.println();
-                System.out.println("Running your program after the build...");
+                System.out.println(profileBool ? "Running your program with the flight recorder after the build..." : "Running your program after the build...");
                 System.out.println("----------");
+                // The profile settings also sample allocations and method executions, the default ones do not.
+                final File recording = new File("build/profile.jfr");
+                final String recorder = "-XX:StartFlightRecording=settings=profile,dumponexit=true,filename=" + recording.getAbsolutePath();
                 try {
                     // TODO(nschultz): We do not yet enable reacting to input requests via stdout from the started process (e.g java.util.Scanner)
                     Object[] result = null;
                     if (jvm.equalsIgnoreCase("---")) {
-                        result = execShellCommand(null, new File("build/release"), true, "java", "-ea", "-jar", programName);
+                        result = profileBool ? execShellCommand(new File("build/release"), true, "java", "-ea", recorder, "-jar", programName)
+                                             : execShellCommand(new File("build/release"), true, "java", "-ea", "-jar", programName);
                     } else {
                         if (new File(jvm).exists()) {
-                            result = execShellCommand(null, new File("build/release"), true, "\"" + jvm + "\"", "-ea", "-jar", programName);
+                            result = profileBool ? execShellCommand(new File("build/release"), true, jvm, "-ea", recorder, "-jar", programName)
+                                                 : execShellCommand(new File("build/release"), true, jvm, "-ea", "-jar", programName);
                         } else {
                             buildFail("Specified jvm executable does not exist.");
                             assert false;
@@ -982,20 +5937,79 @@ public final class jbp {
                     assert result != null;
                     if ((int) result[1] != 0)
                         System.out.println("Failed to run your program.");
+                    if (profileBool)
+                        printProfile(recording);
                 } catch (final IOException ex) {
                     System.out.printf("Failed to run your program because of '%s'\n", ex.getMessage());
                 }
             }
+        } catch (final BuildFailedException ex) {
+            deleteSourcesFiles();
+            System.out.println(ex.getMessage());
+            System.out.println();
+            System.out.println("BUILD FAILED");
+
+            if (log != null && log.equalsIgnoreCase("yes"))
+                log(-1);
+            finishTrace();
+            return -1;
+        }
+        return 0;
+    }
+
+    public static void main(final String[] args) {
+        if (args.length == 0) {
+            Integer exitCode = buildWithDaemon();
+            if (exitCode == null)
+                exitCode = build();
+            if (exitCode != 0)
+                System.exit(exitCode);
         } else if (args.length == 1) {
             final String arg = args[0];
             if (arg.equalsIgnoreCase("--version")) {
-                System.out.println("v0.17.0");
+                System.out.println(VERSION);
+            } else if (arg.equalsIgnoreCase("--workspace")) {
+                if (buildWorkspace() != 0)
+                    System.exit(-1);
+            } else if (arg.equalsIgnoreCase("--stats")) {
+                printStats();
+            } else if (arg.equalsIgnoreCase("--cache-stats")) {
+                printBuildCacheStats();
+            } else if (arg.equalsIgnoreCase("--watch")) {
+                watch();
+            } else if (arg.equalsIgnoreCase("--bench")) {
+                if (runBenchmarks(null) != 0)
+                    System.exit(-1);
+            } else if (arg.equalsIgnoreCase("--selfbench")) {
+                if (selfBenchmark(null) != 0)
+                    System.exit(-1);
+            } else if (arg.equalsIgnoreCase("--selftest")) {
+                if (selfTest() != 0)
+                    System.exit(-1);
+            } else if (arg.equalsIgnoreCase("--daemon")) {
+                runDaemon();
+            } else if (arg.equalsIgnoreCase("--stop-daemon")) {
+                try (final java.net.Socket socket = new java.net.Socket()) {
+                    System.out.println("STOPPED".equals(contactDaemon("stop", socket)) ? "Stopped the jbp daemon." : "No jbp daemon is running for this project.");
+                } catch (final IOException ex) {
+                    System.out.println("No jbp daemon is running for this project.");
+                }
             } else if (arg.equalsIgnoreCase("--help")) {
                 System.out.println("jbp (just build please) is a build tool for java projects. - Niklas Schultz");
                 System.out.println();
                 System.out.println("Simply execute this file in your root project directory to execute a full build.");
                 System.out.println("In case you wish to change the build configuration, you only need to create a 'jbp.config' file and change them there.");
                 System.out.println();
+                System.out.println("--workspace    Build every sub directory with a jbp.config, in the order given by their 'Depends' entries.");
+                System.out.println("--stats        Show trends of the recorded build history (needs 'Log = Yes') and flag builds which got slower or larger.");
+                System.out.println("--cache-stats  Show the size, hits, misses and evictions of the build cache shared by all projects (see 'BuildCacheSize').");
+                System.out.println("--watch        Build again whenever something inside of 'src', 'res', 'libs' or 'jbp.config' changes.");
+                System.out.println("--daemon       Keep a warm jbp process for this project. Later builds get forwarded to it.");
+                System.out.println("--stop-daemon  Stop the daemon of this project.");
+                System.out.println("--bench        Build and run the JMH benchmarks in 'bench' and compare them with the last run. '--bench <regex>' only runs the matching ones.");
+                System.out.println("--selfbench    Measure jbp itself by building a generated project several times. Its size can be given like 'files=500,packages=20,classes=2,libs=4,res=100,runs=5'.");
+                System.out.println("--selftest     Build generated projects to check that jbp works correctly, e.g. that incremental builds match clean ones.");
+                System.out.println();
                 System.out.println("Example config file:");
                 System.out.println("--------------------");
                 System.out.println("ProgramName = Program.jar");
@@ -1012,14 +6026,35 @@ public final class jbp {
                 System.out.println("JVM = ---");
                 System.out.println("Jar = ---");
                 System.out.println("Javadoc = ---");
+                System.out.println("InMemory = No");
+                System.out.println("Incremental = No");
+                System.out.println("BytecodeCacheSize = 64");
+                System.out.println("Trace = No");
+                System.out.println("Depends = ---");
+                System.out.println("Packaging = thin");
+                System.out.println("Reproducible = No");
+                System.out.println("Compression = default");
+                System.out.println("ClassDataSharing = No");
+                System.out.println("Runtime = jdk");
+                System.out.println("Jlink = ---");
+                System.out.println("Jdeps = ---");
+                System.out.println("Profile = No");
+                System.out.println("BenchThreshold = 10");
+                System.out.println("BuildCacheSize = 0");
             } else {
                 System.out.println("Invalid arguments.");
-                System.out.println("Argument can either be '--version' or '--help'");
+                System.out.println("Argument can either be '--version', '--help', '--workspace', '--stats', '--cache-stats', '--watch', '--bench', '--selfbench', '--selftest', '--daemon' or '--stop-daemon'");
                 System.exit(-1);
             }
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("--bench")) {
+            if (runBenchmarks(args[1]) != 0)
+                System.exit(-1);
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("--selfbench")) {
+            if (selfBenchmark(args[1]) != 0)
+                System.exit(-1);
         } else {
             System.out.println("Invalid amount of arguments.");
-            System.out.println("Argument can either be '--version' or '--help'");
+            System.out.println("Argument can either be '--version', '--help', '--workspace', '--stats', '--cache-stats', '--watch', '--bench', '--selfbench', '--selftest', '--daemon' or '--stop-daemon'");
             System.exit(-1);
         }
     }